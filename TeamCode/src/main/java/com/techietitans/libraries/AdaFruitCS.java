@@ -1,101 +1,264 @@
 package com.techietitans.libraries;
 
 import com.qualcomm.robotcore.hardware.HardwareMap;
-import com.techietitans.libraries.DataLogger;
+import com.qualcomm.robotcore.hardware.I2cDevice;
 import com.techietitans.libraries.Wire;
-import com.qualcomm.robotcore.eventloop.opmode.OpMode;
-
-import android.util.Log;
-
-import com.qualcomm.robotcore.eventloop.opmode.OpMode;
 
 /**
  * Created by ruhul on 2/4/16.
  */
-public class AdaFruitCS {
+public class AdaFruitCS extends WireDriver {
+    // Channels of the sample ring
+    public static final int
+            CLEAR = 0,
+            RED = 1,
+            GREEN = 2,
+            BLUE = 3;
+
+    static final int RING_SIZE = 65;    // 64 samples, about 3 s at the 48 ms integration time
+
+    // Auto ranging
+    static final int[] GAINS = {1, 4, 16, 60};     // R[0F] = 0..3
+    static final int
+            REFERENCE = 16 * 20,            // Gain x cycles of the fixed setup, the reported scale
+            MIN_CYCLES = 4,                 // 9.6 ms, about one bus round trip
+            MAX_CYCLES = 100,               // 240 ms, the slowest we range to
+            SETTLE_TIMEOUT = 1000000,       // Longest wait (us) for the range writes to complete
+            NOISE_FLOOR = 256;              // Default lowest clear count worth having
+
+    // Range writes not completed yet
+    private static final int
+            GAIN_WRITE = 1,                 // R[0F]
+            ATIME_WRITE = 2;                // R[01]
 
 
     // --------------------------------- CLASS VARIABLES -------------------------------------------
-    private Wire cs;
-    private int readCount = 0;
-    private long timeStamp;              // In microseconds
-    private int clear, red, green, blue;
+    private final int status, clear, red, green, blue;     // Field handles
+    private int atime = 0xEC;            // Integration time register R[01]
+    private boolean isContinuous;        // Reads scheduled from the integration time
+    private int lastClear = -1, lastRed, lastGreen, lastBlue;
+    private int repeats;                 // Samples read before the sensor had new data
+    private final SampleRing samples = new SampleRing(RING_SIZE, 4);
+    private int gainIndex = 2;           // Gain register R[0F]
+    private boolean isAutoRange;         // Gain and integration follow the clear channel
+    private int noiseFloor = NOISE_FLOOR;
+    private int rangeWrites;             // GAIN_WRITE, ATIME_WRITE bits not completed yet
+    private long rangeMicros;            // Wire time of the last range change
+    private int previousMicros;          // Integration time before it
+    private long settledMicros;          // Samples replied before this are dropped
+    private int rangeChanges;
+    private boolean isAccepted;          // Last sample was reported
+    private int outClear, outRed, outGreen, outBlue;      // Reported, normalised when ranging
 
 
     public AdaFruitCS(HardwareMap hardwareMap, String deviceName, int devAddr) {
-        cs = new Wire(hardwareMap, deviceName, devAddr);
+        this(hardwareMap.i2cDevice.get(deviceName), devAddr);
     }
 
-    public void close() {
-        cs.close();
+    public AdaFruitCS(I2cDevice device, int devAddr) {
+        super(new Wire(device, devAddr));
+        status = field(0x93, 1, Order.LH);  // R[13]        status, bit 0 is AVALID
+        clear = field(0x94, 2, Order.LH);   // R[14..15]    clear color
+        red = field(0x96, 2, Order.LH);     // R[16..17]    red color
+        green = field(0x98, 2, Order.LH);   // R[18..19]    green color
+        blue = field(0x9A, 2, Order.LH);    // R[1A..1B]    blue color
+        readyWhen(status, 0x01, 0x01);      // Colors are valid
     }
 
     public void initColorSensor() {
-        cs.write(0x80, 0x03);                // R[00] = 3    to enable power
-        cs.requestFrom(0x92, 1);            // R[12]        is the device ID
-        cs.write(0x8F, 0x02);                // R[0F] = 2    to set gain 16
-        cs.write(0x81, 0xEC);                // R[01] = EC   to set integration time to 20* 2.4 ms
+        wire.write(0x80, 0x03);                // R[00] = 3    to enable power
+        wire.requestFrom(0x92, 1);            // R[12]        is the device ID
+        setGain(2);                            // R[0F] = 2    to set gain 16
+        setIntegrationTime(0xEC);              // R[01] = EC   to set integration time to 20* 2.4 ms
         // 256 - 20 = 236 = 0xEC
     }
 
+    public void setGain(int gainIndex) {
+        this.gainIndex = Math.max(0, Math.min(gainIndex, GAINS.length - 1));
+        wire.write(0x8F, this.gainIndex);
+    }
+
+    public int gain() {
+        return GAINS[gainIndex];
+    }
+
+    public void setAutoRange(boolean enabled, int noiseFloor) {
+        // Values are then reported on the scale of gain 16 and 20 cycles, whatever the setting
+        isAutoRange = enabled;
+        this.noiseFloor = Math.max(noiseFloor, 1);
+    }
+
+    public int rangeChangeCount() {
+        return rangeChanges;
+    }
+
+    public void setIntegrationTime(int atime) {
+        this.atime = atime & 0xff;
+        wire.write(0x81, this.atime);
+    }
+
+    public int integrationMicros() {
+        return (256 - atime) * 2400;        // 2.4 ms per count
+    }
+
     public void startColorPolling() {
-        cs.requestFrom(0x93, 1);            // Get sensor status
+        isContinuous = false;
+        setPlan(0, 1);
+        start();                            // Status and colors in one burst, polled back to back
     }
 
-    public boolean isColorUpdate() {
-        boolean isNew = false;
-        if (cs.responseCount() > 0) {
-            cs.getResponse();
-            int regNumber = cs.registerNumber();
-            if (cs.isRead()) {
-                int regCount = cs.available();
-                switch (regNumber) {
-                    case 0x93:
-                        if (regCount == 1) {
-                            int status = cs.read();
-                            if ((status & 1) != 0) {
-                                cs.requestFrom(0x94, 8);             // Get colors
-                            } else {
-                                cs.requestFrom(0x93, 1);             // Keep polling
-                            }
-                        } else {
-                            Log.i("GST", String.format("ERROR reg 0x%02X Len = 0x%02X (!= 1)",
-                                    regNumber, regCount));
-                        }
-                        break;
-                    case 0x94:
-                        cs.requestFrom(0x93, 1);                     // Keep polling
-                        if (regCount == 8) {                        // Check register count
-                            timeStamp = cs.micros();              // Reading time
-                            clear = cs.readLH();              // Clear color
-                            red = cs.readLH();              // Red color
-                            green = cs.readLH();              // Green color
-                            blue = cs.readLH();              // Blue color
-                            isNew = true;
-                        } else {
-                            Log.i("GST", String.format("ERROR reg 0x%02X Len = 0x%02X (!= 8)",
-                                    regNumber, regCount));
-                        }
-                        break;
-                    default:
-                        break;
+    public void startContinuous() {
+        // One read per integration, the next one always queued. The period is a little short
+        // so the reads drift early; a repeated sample then moves them a little later.
+        isContinuous = true;
+        repeats = 0;
+        lastClear = -1;
+        setPlan(integrationMicros() * 63 / 64, 2);
+        start();
+    }
+
+    public double sampleRate() {
+        return samplesPerSecond();          // Achieved rate since the start
+    }
+
+    public double maxSampleRate() {
+        return 1.0E6 / integrationMicros();
+    }
+
+    public int repeatCount() {
+        return repeats;
+    }
+
+    public SampleRing getSamples() {
+        return samples;                     // Readable from any thread
+    }
+
+    @Override
+    protected void onSample() {
+        if (isContinuous) {
+            if (value(clear) == lastClear && value(red) == lastRed
+                    && value(green) == lastGreen && value(blue) == lastBlue) {
+                repeats++;
+                delayCycles(integrationMicros() / 16);
+            }
+            lastClear = value(clear);
+            lastRed = value(red);
+            lastGreen = value(green);
+            lastBlue = value(blue);
+        }
+        isAccepted = isSettled();
+        if (!isAccepted) return;            // Integrated partly with the old setting
+        outClear = normalise(value(clear));
+        outRed = normalise(value(red));
+        outGreen = normalise(value(green));
+        outBlue = normalise(value(blue));
+        samples.add(micros(), outClear, outRed, outGreen, outBlue);
+        if (isAutoRange) autoRange(value(clear));
+    }
+
+    @Override
+    protected void onOtherResponse() {
+        // Completion of the range writes. The bus is serial, so a read replied after it was
+        // also dispatched after it.
+        if (rangeWrites == 0 || !wire.isWrite()) return;
+        int first = wire.registerNumber();
+        int count = wire.available();
+        if (first <= 0x8F && 0x8F < first + count) rangeWrites &= ~GAIN_WRITE;
+        if (first <= 0x81 && 0x81 < first + count) rangeWrites &= ~ATIME_WRITE;
+        if (rangeWrites == 0) settleFrom(wire.micros());
+    }
+
+    private void settleFrom(long doneMicros) {
+        // The integration running when the writes completed may still use the old setting, the
+        // next one is wholly new. A read reaches the sensor up to a round trip before its reply.
+        settledMicros = doneMicros + previousMicros + integrationMicros() + MIN_CYCLES * 2400;
+    }
+
+    private boolean isSettled() {
+        if (rangeWrites != 0 && micros() - rangeMicros > SETTLE_TIMEOUT) {
+            rangeWrites = 0;                // A completion was lost, count from this sample
+            settleFrom(micros());
+        }
+        return rangeWrites == 0 && micros() >= settledMicros;
+    }
+
+    private int normalise(int raw) {
+        if (!isAutoRange) return raw;
+        return (int) ((long) raw * REFERENCE / (GAINS[gainIndex] * (256 - atime)));
+    }
+
+    private void autoRange(int clearCount) {
+        // Shortest integration, with the highest gain that does not saturate, that keeps the
+        // clear channel above the noise floor. Only switch when the current setting is out of
+        // range or the new one is at least twice as fast.
+        int cycles = 256 - atime;
+        int full = Math.min(65535, cycles * 1024);
+        boolean isSaturated = clearCount >= full * 9 / 10;
+        double level = Math.max(clearCount, 1) / (double) (GAINS[gainIndex] * cycles);
+        if (isSaturated) level *= 4;        // Clipped, the real level is higher
+        int bestCycles = MAX_CYCLES;
+        int bestGain = 0;
+        boolean isFound = false;
+        for (int n = MIN_CYCLES; n <= MAX_CYCLES && !isFound; n = Math.max(n + 1, n * 5 / 4)) {
+            double limit = 0.75 * Math.min(65535, n * 1024);
+            for (int g = GAINS.length - 1; g >= 0; g--) {
+                double expected = level * GAINS[g] * n;
+                if (expected > limit) continue;
+                if (expected >= noiseFloor) {
+                    bestCycles = n;
+                    bestGain = g;
+                    isFound = true;
                 }
+                break;                      // Lower gains only give less signal
             }
         }
-        return isNew;
+        if (!isFound) {                     // Too dark, take the slowest unsaturated setting
+            for (int g = GAINS.length - 1; g > 0; g--) {
+                if (level * GAINS[g] * MAX_CYCLES <= 0.75 * 65535) {
+                    bestGain = g;
+                    break;
+                }
+            }
+        }
+        boolean isInRange = !isSaturated && clearCount >= noiseFloor;
+        if (isInRange && bestCycles * 2 > cycles) return;
+        if (bestCycles == cycles && bestGain == gainIndex) return;
+        previousMicros = integrationMicros();
+        if (bestGain != gainIndex) {
+            setGain(bestGain);
+            rangeWrites |= GAIN_WRITE;
+        }
+        if (bestCycles != cycles) {
+            setIntegrationTime(256 - bestCycles);
+            rangeWrites |= ATIME_WRITE;
+        }
+        rangeMicros = wire.nowMicros();
+        rangeChanges++;
+        if (isContinuous) setPlan(integrationMicros() * 63 / 64, 2);
     }
 
+    public boolean isPollDeferred() {
+        return isDeferred();
+    }
+
+    public boolean isColorUpdate() {
+        return update() && isAccepted;
+    }
+
+    public int clear() {
+        return outClear;
+    }
 
     public int red() {
-        return red;
+        return outRed;
     }
 
     public int green() {
-        return green;
+        return outGreen;
     }
 
     public int blue() {
-        return blue;
+        return outBlue;
     }
 
-}
\ No newline at end of file
+}
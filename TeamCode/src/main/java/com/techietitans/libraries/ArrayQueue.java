@@ -14,7 +14,11 @@ public class ArrayQueue<AnyType> {
     }
 
     public ArrayQueue() {
-        queue = newQueue(DEFAULT_SIZE);
+        this(DEFAULT_SIZE);
+    }
+
+    public ArrayQueue(int size) {       // Presize to avoid doubling in steady state
+        queue = newQueue(size);
         queueSize = queue.length;
         head = 0;
         tail = 0;
@@ -52,6 +56,16 @@ public class ArrayQueue<AnyType> {
         tail = nextTail;
     }
 
+    public AnyType peek() {
+        if (isEmpty()) return null;
+        return queue[head];
+    }
+
+    public AnyType get(int index) {     // 0 is the head
+        if (index < 0 || index >= length()) return null;
+        return queue[(head + index) % queueSize];
+    }
+
     public AnyType remove() {
         AnyType element;
         if (isEmpty()) return null;
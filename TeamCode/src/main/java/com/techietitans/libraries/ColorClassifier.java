@@ -0,0 +1,269 @@
+package com.techietitans.libraries;
+
+import com.qualcomm.hardware.modernrobotics.ModernRoboticsI2cColorSensor;
+
+/**
+ * Names the color a color sensor is looking at, e.g. the jewel.
+ * <p/>
+ * The static methods convert RGB counts to hue, saturation and chromaticity in integer fixed
+ * point, ONE is 1.0. Chromaticity (each channel over the sum of the three) does not change
+ * with distance or LED brightness, so it is what the classifier works on.
+ * <p/>
+ * Each class has a centroid in (red, green) chromaticity and a spread. A class is set up from
+ * a reference color with addClass(), then optionally trained with readings of the real object,
+ * which moves the centroid to their mean and the spread to their standard deviation. A sample
+ * goes to the nearest class, measured in spreads of that class. It is UNKNOWN when it is too
+ * dark, too grey (saturation below MIN_SATURATION) or further than MAX_SPREADS from every
+ * class. The confidence of a class is its share of the Gaussian scores of all classes.
+ * <p/>
+ * add() feeds one sample per OpMode loop; the result is settled once SETTLE_SAMPLES samples in
+ * a row went to the same class with at least MIN_CONFIDENCE. Usage:
+ * <pre>
+ *   ColorClassifier jewel = new ColorClassifier();
+ *   int red = jewel.addClass("Red", 255, 40, 40);
+ *   int blue = jewel.addClass("Blue", 40, 80, 255);
+ *   ...
+ *   jewel.add(Color_jewel);
+ *   if (jewel.isSettled() &amp;&amp; jewel.result() == red) ...
+ * </pre>
+ */
+public class ColorClassifier {
+    public static final int
+            UNKNOWN = -1,
+            ONE = 1024,                     // Fixed point 1.0
+            HUE_SECTOR = 256,               // Hue of 60 degrees, red is 0
+            HUE_FULL = 6 * HUE_SECTOR;      // Hue of 360 degrees
+
+    static final int
+            MAX_CLASSES = 8,
+            DEFAULT_SPREAD = ONE / 10,      // Chromaticity spread of an untrained class
+            MIN_SPREAD = ONE / 64,          // Training does not make a class narrower
+            MIN_BRIGHTNESS = 3,             // Lowest red + green + blue that is classified
+            MIN_SATURATION = ONE / 4,       // Greyer samples are not classified
+            SETTLE_SAMPLES = 3;
+    static final double
+            MAX_SPREADS = 3.0,              // Further than this from every class is UNKNOWN
+            MIN_CONFIDENCE = 0.9;
+
+    // --------------------------------- CLASS VARIABLES -------------------------------------------
+    private int classes;
+    private final String[] name = new String[MAX_CLASSES];
+    private final int[] centerRed = new int[MAX_CLASSES];      // Chromaticity centroid
+    private final int[] centerGreen = new int[MAX_CLASSES];
+    private final int[] spread = new int[MAX_CLASSES];
+    private final int[] trained = new int[MAX_CLASSES];        // Training samples
+    private final long[] sumRed = new long[MAX_CLASSES];
+    private final long[] sumGreen = new long[MAX_CLASSES];
+    private final long[] sumSquares = new long[MAX_CLASSES];   // Of the distance to the origin
+
+    private int minBrightness = MIN_BRIGHTNESS;
+    private int minSaturation = MIN_SATURATION;
+    private int settleSamples = SETTLE_SAMPLES;
+    private double minConfidence = MIN_CONFIDENCE;
+
+    private final double[] confidence = new double[MAX_CLASSES];   // Of the last sample
+    private final double[] logLikelihood = new double[MAX_CLASSES];
+    private int lastClass = UNKNOWN;
+    private int streak;                     // Samples in a row confidently in lastClass
+    private int samples;                    // Since reset()
+
+// --------------------------------- CLASS INIT -------------------------------------------------
+
+    public ColorClassifier() {
+    }
+
+    public int addClass(String className, int red, int green, int blue) {
+        // Returns the class id, used with train(), confidence() and as result()
+        if (classes >= MAX_CLASSES) throw new IllegalStateException("Too many color classes");
+        int id = classes++;
+        name[id] = className;
+        setCentroid(id, red, green, blue, DEFAULT_SPREAD);
+        return id;
+    }
+
+    public void setCentroid(int id, int red, int green, int blue, int chromaSpread) {
+        centerRed[id] = chromaticity(red, red, green, blue);
+        centerGreen[id] = chromaticity(green, red, green, blue);
+        spread[id] = Math.max(chromaSpread, MIN_SPREAD);
+        trained[id] = 0;
+        sumRed[id] = 0;
+        sumGreen[id] = 0;
+        sumSquares[id] = 0;
+    }
+
+    public void train(int id, int red, int green, int blue) {
+        if (red + green + blue < minBrightness) return;
+        int cr = chromaticity(red, red, green, blue);
+        int cg = chromaticity(green, red, green, blue);
+        trained[id]++;
+        sumRed[id] += cr;
+        sumGreen[id] += cg;
+        sumSquares[id] += (long) cr * cr + (long) cg * cg;
+        int n = trained[id];
+        centerRed[id] = (int) (sumRed[id] / n);
+        centerGreen[id] = (int) (sumGreen[id] / n);
+        if (n < 2) return;                  // Keep the spread until there is a variance
+        double meanRed = (double) sumRed[id] / n;
+        double meanGreen = (double) sumGreen[id] / n;
+        double variance = ((double) sumSquares[id] / n - meanRed * meanRed - meanGreen * meanGreen) / 2;
+        spread[id] = Math.max((int) Math.sqrt(Math.max(variance, 0.0)), MIN_SPREAD);
+    }
+
+    public void setMinBrightness(int minBrightness) {
+        this.minBrightness = Math.max(minBrightness, 1);
+    }
+
+    public void setMinSaturation(int minSaturation) {
+        this.minSaturation = minSaturation;         // 0 classifies grey too
+    }
+
+    public void setSettling(int settleSamples, double minConfidence) {
+        this.settleSamples = Math.max(settleSamples, 1);
+        this.minConfidence = minConfidence;
+    }
+
+    public void reset() {
+        // Start a new decision, the classes stay
+        lastClass = UNKNOWN;
+        streak = 0;
+        samples = 0;
+    }
+
+    //------------------------------------------------- Classification -------------------------
+
+    public int add(ModernRoboticsI2cColorSensor sensor) {
+        // The sensor has no new-data signal, every call is a sample
+        return add(sensor.red(), sensor.green(), sensor.blue());
+    }
+
+    public int add(AdaFruitCS sensor) {
+        // Polls the driver, so call it instead of isColorUpdate(). Returns the class of the
+        // last sample when there is no new one.
+        if (!sensor.isColorUpdate()) return lastClass;
+        return add(sensor.red(), sensor.green(), sensor.blue());
+    }
+
+    public int add(int red, int green, int blue) {
+        // Class of this sample, UNKNOWN when there is none
+        int id = classify(red, green, blue);
+        samples++;
+        if (id != UNKNOWN && id == lastClass && confidence[id] >= minConfidence) {
+            streak++;
+        } else {
+            streak = (id != UNKNOWN && confidence[id] >= minConfidence) ? 1 : 0;
+        }
+        lastClass = id;
+        return id;
+    }
+
+    public int classify(int red, int green, int blue) {
+        // Nearest class of one sample without changing the decision, fills confidence()
+        for (int id = 0; id < classes; id++) {
+            confidence[id] = 0.0;
+            logLikelihood[id] = 0.0;
+        }
+        if (classes == 0 || red + green + blue < minBrightness) return UNKNOWN;
+        int cr = chromaticity(red, red, green, blue);
+        int cg = chromaticity(green, red, green, blue);
+        int nearest = UNKNOWN;
+        double nearestZ = 0.0;
+        double total = 0.0;
+        for (int id = 0; id < classes; id++) {
+            long dr = cr - centerRed[id];
+            long dg = cg - centerGreen[id];
+            double z2 = (double) (dr * dr + dg * dg) / ((long) spread[id] * spread[id]);
+            confidence[id] = Math.exp(-0.5 * z2);
+            logLikelihood[id] = -0.5 * z2 - 2.0 * Math.log(spread[id]);    // Up to a constant
+            total += confidence[id];
+            if (nearest == UNKNOWN || z2 < nearestZ) {
+                nearest = id;
+                nearestZ = z2;
+            }
+        }
+        if (total > 0.0) {
+            for (int id = 0; id < classes; id++) confidence[id] /= total;
+        }
+        if (nearestZ > MAX_SPREADS * MAX_SPREADS) return UNKNOWN;
+        if (saturation(red, green, blue) < minSaturation) return UNKNOWN;
+        return nearest;
+    }
+
+    //------------------------------------------------- Results --------------------------------
+
+    public boolean isSettled() {
+        return streak >= settleSamples;
+    }
+
+    public int result() {
+        // Settled class, UNKNOWN until then
+        return isSettled() ? lastClass : UNKNOWN;
+    }
+
+    public int lastClass() {
+        return lastClass;
+    }
+
+    public double confidence(int id) {
+        return confidence[id];
+    }
+
+    public double logLikelihood(int id) {
+        // Of the last classified sample under the Gaussian of the class, 0 when it was too dark
+        return logLikelihood[id];
+    }
+
+    public int sampleCount() {
+        return samples;
+    }
+
+    public int classCount() {
+        return classes;
+    }
+
+    public String name(int id) {
+        return id == UNKNOWN ? "Unknown" : name[id];
+    }
+
+    //------------------------------------------------- Color space ----------------------------
+
+    public static int chromaticity(int channel, int red, int green, int blue) {
+        // Share of channel in red + green + blue, ONE is all of it
+        int sum = red + green + blue;
+        return sum > 0 ? (int) ((long) channel * ONE / sum) : ONE / 3;
+    }
+
+    public static int hue(int red, int green, int blue) {
+        // 0 to HUE_FULL - 1 from red over green and blue, -1 for grey
+        int max = Math.max(red, Math.max(green, blue));
+        int delta = max - Math.min(red, Math.min(green, blue));
+        if (delta == 0) return -1;
+        int h;
+        if (max == red) {
+            h = (green - blue) * HUE_SECTOR / delta;
+            if (h < 0) h += HUE_FULL;
+        } else if (max == green) {
+            h = 2 * HUE_SECTOR + (blue - red) * HUE_SECTOR / delta;
+        } else {
+            h = 4 * HUE_SECTOR + (red - green) * HUE_SECTOR / delta;
+        }
+        return h;
+    }
+
+    public static int saturation(int red, int green, int blue) {
+        // 0 for grey, ONE for a pure color
+        int max = Math.max(red, Math.max(green, blue));
+        if (max == 0) return 0;
+        int delta = max - Math.min(red, Math.min(green, blue));
+        return (int) ((long) delta * ONE / max);
+    }
+
+    public static int value(int red, int green, int blue) {
+        return Math.max(red, Math.max(green, blue));    // In sensor counts
+    }
+
+    public static void toHsv(int red, int green, int blue, int[] hsv) {
+        hsv[0] = hue(red, green, blue);
+        hsv[1] = saturation(red, green, blue);
+        hsv[2] = value(red, green, blue);
+    }
+}
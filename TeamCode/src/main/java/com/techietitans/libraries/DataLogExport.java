@@ -0,0 +1,186 @@
+package com.techietitans.libraries;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedWriter;
+import java.io.DataInputStream;
+import java.io.FileInputStream;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.io.Writer;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.Locale;
+
+/**
+ * Turns DataLogger BINARY files (.ttlog) into the CSV files the text format writes, so the
+ * Excel sheets keep working. Runs on a PC, not on the robot:
+ * <pre>
+ *   java -cp &lt;TeamCode classes&gt; com.techietitans.libraries.DataLogExport Dl_TT_Auto.ttlog ...
+ * </pre>
+ * Each file.ttlog becomes file.csv next to it. The sec and d ms columns are computed from the
+ * record time stamps the way DataLogger computes them, and values DataLogger marks as not set
+ * (NaN, the smallest int or long, boolean 2) become empty cells. A record cut short at the end of the
+ * file, e.g. when the robot lost power, is left out, and so are the zero bytes a Mode.MAPPED
+ * file has after its last record when the app was killed. A .csv argument is a Mode.MAPPED
+ * text file; it is cut at its first zero byte in place.
+ */
+public class DataLogExport {
+
+    public static void main(String[] args) {
+        if (args.length == 0) {
+            System.err.println("Usage: DataLogExport file.ttlog [file.ttlog ...]");
+            System.exit(1);
+        }
+        int failed = 0;
+        for (String path : args) {
+            if (path.endsWith(".csv")) {
+                try {
+                    System.out.println(path + ": " + trimZeros(path) + " bytes kept");
+                } catch (IOException e) {
+                    System.err.println(path + ": " + e.getMessage());
+                    failed++;
+                }
+                continue;
+            }
+            String csvPath = (path.endsWith(".ttlog") ? path.substring(0, path.length() - 6) : path)
+                    + ".csv";
+            try {
+                long records = export(path, csvPath);
+                System.out.println(path + ": " + records + " records to " + csvPath);
+            } catch (IOException e) {
+                System.err.println(path + ": " + e.getMessage());
+                failed++;
+            }
+        }
+        System.exit(failed > 0 ? 1 : 0);
+    }
+
+    public static long export(String binaryPath, String csvPath) throws IOException {
+        // Returns the number of records written
+        DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(binaryPath)));
+        Writer out = null;
+        try {
+            ByteBuffer fixed = read(in, 16);
+            if (fixed.getInt() != DataLogger.MAGIC) throw new IOException("Not a DataLogger file");
+            int columns = fixed.getInt();
+            fixed.getLong();                // Start time, not in the CSV layout
+            if (columns <= 0 || columns > DataLogger.MAX_COLUMNS) {
+                throw new IOException("Bad column count " + columns);
+            }
+            byte[] types = new byte[columns];
+            StringBuilder line = new StringBuilder(256);
+            line.append("sec,d ms");
+            int recordSize = 8;
+            for (int c = 0; c < columns; c++) {
+                ByteBuffer column = read(in, 3);
+                types[c] = column.get();
+                if (types[c] < DataLogger.TYPE_INT || types[c] > DataLogger.TYPE_CHAR) {
+                    throw new IOException("Bad type " + types[c] + " of column " + (c + 1));
+                }
+                byte[] name = new byte[column.getShort() & 0xffff];
+                in.readFully(name);
+                line.append(',').append(new String(name, "UTF-8"));
+                recordSize += DataLogger.TYPE_SIZE[types[c]];
+            }
+            out = new BufferedWriter(new FileWriter(csvPath));
+            out.write(line.append('\n').toString());
+
+            byte[] data = new byte[recordSize];
+            ByteBuffer record = ByteBuffer.wrap(data).order(ByteOrder.LITTLE_ENDIAN);
+            long previous = 0;
+            long records = 0;
+            while (readRecord(in, data) && !isZero(data)) {
+                record.clear();
+                long nanos = record.getLong();
+                line.setLength(0);
+                line.append(String.format(Locale.US, "%.3f", nanos / 1.0E9));
+                line.append(',').append(String.format(Locale.US, "%.3f", (nanos - previous) / 1.0E6));
+                previous = nanos;
+                for (int c = 0; c < columns; c++) {
+                    line.append(',');
+                    switch (types[c]) {     // A value DataLogger marks as not set stays empty
+                        case DataLogger.TYPE_INT:
+                            int i = record.getInt();
+                            if (i != DataLogger.MISSING_INT) line.append(i);
+                            break;
+                        case DataLogger.TYPE_LONG:
+                            long l = record.getLong();
+                            if (l != DataLogger.MISSING_LONG) line.append(l);
+                            break;
+                        case DataLogger.TYPE_FLOAT:
+                            float f = record.getFloat();
+                            if (!Float.isNaN(f)) line.append(Float.toString(f));
+                            break;
+                        case DataLogger.TYPE_DOUBLE:
+                            double d = record.getDouble();
+                            if (!Double.isNaN(d)) line.append(Double.toString(d));
+                            break;
+                        case DataLogger.TYPE_BOOLEAN:
+                            byte b = record.get();
+                            if (b != DataLogger.MISSING_BOOLEAN) line.append(b != 0 ? '1' : '0');
+                            break;
+                        default:
+                            line.append(record.getChar());
+                            break;
+                    }
+                }
+                out.write(line.append('\n').toString());
+                records++;
+            }
+            return records;
+        } finally {
+            in.close();
+            if (out != null) out.close();
+        }
+    }
+
+    private static ByteBuffer read(DataInputStream in, int count) throws IOException {
+        byte[] bytes = new byte[count];
+        in.readFully(bytes);
+        return ByteBuffer.wrap(bytes).order(ByteOrder.LITTLE_ENDIAN);
+    }
+
+    private static boolean isZero(byte[] data) {
+        // A real record has a time stamp after the logger was created, so never all zero
+        for (byte b : data) {
+            if (b != 0) return false;
+        }
+        return true;
+    }
+
+    public static long trimZeros(String path) throws IOException {
+        // Cut a mapped text file after its last line, returns the new length
+        RandomAccessFile file = new RandomAccessFile(path, "rw");
+        try {
+            byte[] chunk = new byte[65536];
+            long length = 0;
+            long offset = 0;
+            int n;
+            while ((n = file.read(chunk)) > 0) {
+                for (int i = 0; i < n; i++) {
+                    if (chunk[i] == 0) {
+                        file.setLength(offset + i);
+                        return offset + i;
+                    }
+                }
+                offset += n;
+                length = offset;
+            }
+            return length;
+        } finally {
+            file.close();
+        }
+    }
+
+    private static boolean readRecord(DataInputStream in, byte[] data) throws IOException {
+        // False at the end of the file, also when the last record is incomplete
+        int done = 0;
+        while (done < data.length) {
+            int n = in.read(data, done, data.length - done);
+            if (n < 0) return false;
+            done += n;
+        }
+        return true;
+    }
+}
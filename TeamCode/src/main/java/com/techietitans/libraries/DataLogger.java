@@ -7,68 +7,568 @@ package com.techietitans.libraries;
  * Comma Separated Values (CSV)file that can be opened with Excel for further analysis.
  * There is no limit how many DataLoggers an OpMode can use.
  * The idea was discussed in FTC Forum by Olavi Kamppari. Olavi provided the design as well.
+ * <p/>
+ * In async mode newLine() never touches the file. Lines are encoded into one of two
+ * preallocated buffers; a full buffer, or one older than FLUSH_MILLIS, is handed to a writer
+ * thread that writes it to the SD card and hands it back. The writer takes an old buffer
+ * itself when no line comes, so the last lines get written even if logging just stops. When
+ * the writer still has both buffers the line is dropped and counted, so an SD card stall
+ * costs data, not loop time.
+ * <p/>
+ * The BINARY format skips the text conversion. The first line holds the column names, as in
+ * a CSV file; the types of the fields of the first data line fix the column types. Every line
+ * becomes a fixed width little-endian record: the nanoseconds since the logger was created,
+ * then the fields. A data line whose field types differ from the first is dropped and counted.
+ * Text fields are for the name line only. DataLogExport turns a .ttlog file into the CSV file
+ * the text format would have written. File layout:
+ * <pre>
+ *   int MAGIC, int columns, long start (System.currentTimeMillis)
+ *   columns x (byte type, short name length, UTF-8 name)
+ *   records: long nanos, then the fields, TYPE_SIZE[type] bytes each
+ * </pre>
+ * Mode.MAPPED writes lines straight into a memory mapped file on the OpMode thread, without
+ * a String copy or a system call per line. The file is extended MAP_CHUNK bytes at a time
+ * and cut to the written length by closeDataLogger(). After the app is killed the data is
+ * still in the file, followed by zeros up to the end of the chunk; DataLogExport stops at
+ * them (binary) or cuts them off (CSV).
+ * <p/>
+ * Instead of building each line with addField(), the columns can be declared once. Every
+ * declaration returns a typed handle, startRows() checks the schema and writes the header,
+ * then each loop sets the values by handle and calls writeRow(). A value not set since the
+ * last row is written as an empty cell and counted in missingCount(); in a CSV file any value
+ * that was set, NaN and the smallest int or long included, is written as it is. The binary
+ * format has no empty field, so it writes NaN, the smallest int or long, or boolean 2, and
+ * DataLogExport turns these into empty cells; there such a value set on purpose reads back
+ * empty as well.
+ * Declaring a column twice, after startRows() or after newLine(), or calling addField() once
+ * there is a schema, throws.
+ * <pre>
+ *   DataLogger.IntColumn loop = dl.intColumn("LoopCounter");
+ *   DataLogger.DoubleColumn power = dl.doubleColumn("LF power");
+ *   dl.startRows();
+ *   ...
+ *   loop.set(loopCounter);
+ *   power.set(left_front_motor.getPower());
+ *   dl.writeRow();
+ * </pre>
  */
 
 
+import java.io.BufferedOutputStream;
 import java.io.File;
+import java.io.FileOutputStream;
 import java.io.FileWriter;
 import java.io.IOException;
+import java.io.OutputStream;
+import java.io.RandomAccessFile;
 import java.io.Writer;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.concurrent.locks.LockSupport;
 
 public class DataLogger {
+    public enum Format {
+        CSV,                            // Text, one line per newLine()
+        BINARY                          // Typed fixed width records, see DataLogExport
+    }
+
+    public enum Mode {
+        SYNC,                           // Written by newLine()
+        ASYNC,                          // Written by a background thread
+        MAPPED                          // Copied into a memory mapped file
+    }
+
+    static final int
+            BLOCK_SIZE = 8192,              // Bytes per buffer of the async mode
+            BLOCKS = 2,                     // Double buffering
+            FLUSH_MILLIS = 500,             // A partly filled buffer goes to disk after this
+            MAX_COLUMNS = 64,               // Binary format
+            MAP_CHUNK = 1 << 20;            // Bytes the mapped file grows by
+
+    // Binary format
+    static final int MAGIC = 0x31474C54;    // "TLG1" in file order
+    static final byte
+            TYPE_INT = 1,                   // Also byte and short
+            TYPE_LONG = 2,
+            TYPE_FLOAT = 3,
+            TYPE_DOUBLE = 4,
+            TYPE_BOOLEAN = 5,
+            TYPE_CHAR = 6;
+    static final int[] TYPE_SIZE = {0, 4, 8, 4, 8, 1, 2};
+
+    // Schema value not set in its row, floats use NaN
+    static final int MISSING_INT = Integer.MIN_VALUE;
+    static final long MISSING_LONG = Long.MIN_VALUE;
+    static final byte MISSING_BOOLEAN = 2;
+
+    private static class Block {
+        final byte[] data = new byte[BLOCK_SIZE];
+        final ByteBuffer buffer = ByteBuffer.wrap(data);
+        int length;
+        long startMillis;                   // Time of the first line in it
+    }
+
     private Writer writer;
     private StringBuffer lineBuffer;
     private long msBase;
     private long nsBase;
+    private long nsStart;                   // Construction, time base of recorded rows
+    private long lastRowNanos;              // Time stamp of the last recorded row
+
+    // Async mode
+    private OutputStream stream;
+    private Thread writerThread;
+    private SpscQueue<Block> full;          // OpMode thread to writer thread
+    private SpscQueue<Block> free;          // And back
+    private Block block;                    // Being filled, null when none was free
+    private volatile boolean isClosing;
+    private int dropped;                    // Lines lost because the writer fell behind
+
+    // Mapped mode
+    private boolean isMapped;
+    private RandomAccessFile mappedFile;
+    private FileChannel channel;
+    private MappedByteBuffer map;
+    private long mapStart;                  // File offset of map
+
+    // Binary format
+    private boolean isBinary;
+    private ByteBuffer record;              // Line being added, after its time stamp
+    private final byte[] lineTypes = new byte[MAX_COLUMNS];
+    private int lineFields;
+    private boolean isBadLine;              // Has a text field or too many fields
+    private final String[] names = new String[MAX_COLUMNS];
+    private int lineNames;                  // Text fields at the start of the line
+    private int nameCount;                  // Column names, from the names line
+    private byte[] columnTypes;             // Fixed by the first data line, null until then
+
+    // Schema
+    private final String[] columnNames = new String[MAX_COLUMNS];
+    private final byte[] schemaTypes = new byte[MAX_COLUMNS];
+    private int schemaColumns;
+    private boolean isRowsStarted;
+    private boolean hasLines;               // newLine() was used, too late for a schema
+    private final long[] rowBits = new long[MAX_COLUMNS];     // Values of the row, raw bits
+    private final boolean[] rowSet = new boolean[MAX_COLUMNS];
+    private long rowMask;                   // Columns set in the row being written, bit c
+    private int missing;                    // Values not set in their row
 
     public DataLogger(String fileName) {
+        this(fileName, false);
+    }
+
+    public DataLogger(String fileName, boolean isAsync) {
+        this(fileName, Format.CSV, isAsync);
+    }
+
+    public DataLogger(String fileName, Format format, boolean isAsync) {
+        this(fileName, format, isAsync ? Mode.ASYNC : Mode.SYNC);
+    }
+
+    public DataLogger(String fileName, Format format, Mode mode) {
         String directoryPath = "/sdcard/FIRST/DataLogger";
-        String filePath = directoryPath + "/" + fileName + ".csv";
+        isBinary = (format == Format.BINARY);
+        String filePath = directoryPath + "/" + fileName + (isBinary ? ".ttlog" : ".csv");
 
         new File(directoryPath).mkdir();        // Make sure that the directory exists
 
+        lineBuffer = new StringBuffer(128);
+        isMapped = (mode == Mode.MAPPED);
         try {
-            writer = new FileWriter(filePath);
-            lineBuffer = new StringBuffer(128);
+            if (isMapped) {
+                mappedFile = new RandomAccessFile(filePath, "rw");
+                mappedFile.setLength(0);
+                channel = mappedFile.getChannel();
+                map = channel.map(FileChannel.MapMode.READ_WRITE, 0, MAP_CHUNK);
+            } else if (mode == Mode.ASYNC || isBinary) {
+                if (mode == Mode.ASYNC) {
+                    stream = new FileOutputStream(filePath);    // Written a whole block at a time
+                    startWriter();
+                } else {
+                    stream = new BufferedOutputStream(new FileOutputStream(filePath), BLOCK_SIZE);
+                }
+            } else {
+                writer = new FileWriter(filePath);
+            }
         } catch (IOException e) {
         }
         msBase = System.currentTimeMillis();
         nsBase = System.nanoTime();
-        addField("sec");
-        addField("d ms");
+        nsStart = nsBase;
+        lastRowNanos = nsBase;
+        if (isBinary) {
+            record = ByteBuffer.allocate(8 + 8 * MAX_COLUMNS).order(ByteOrder.LITTLE_ENDIAN);
+            startRecord(nsBase);
+            return;                         // DataLogExport adds the time columns
+        }
+        appendText("sec");
+        appendText("d ms");
     }
 
     private void flushLineBuffer() {
+        if (isBinary) {
+            flushRecord();
+            return;
+        }
         long milliTime, nanoTime;
 
-        try {
-            lineBuffer.append('\n');
-            writer.write(lineBuffer.toString());
-            lineBuffer.setLength(0);
-        } catch (IOException e) {
+        lineBuffer.append('\n');
+        if (isMapped) {
+            if (reserveMapped(encodedLength(lineBuffer))) encode(lineBuffer, map);
+        } else if (stream != null) {
+            if (writerThread != null) queueLine();      // Not after close
+        } else {
+            try {
+                writer.write(lineBuffer.toString());
+            } catch (IOException e) {
+            }
         }
+        lineBuffer.setLength(0);
         milliTime = System.currentTimeMillis();
         nanoTime = System.nanoTime();
-        addField(String.format("%.3f", (milliTime - msBase) / 1.0E3));
-        addField(String.format("%.3f", (nanoTime - nsBase) / 1.0E6));
+        appendThousandths(milliTime - msBase);                  // sec
+        appendThousandths((nanoTime - nsBase + 500L) / 1000L);  // d ms
         nsBase = nanoTime;
     }
 
     public void closeDataLogger() {
+        if (isMapped) {
+            closeMapped();
+            return;
+        }
+        if (writerThread != null) {
+            stopWriter();
+            return;
+        }
         try {
+            if (stream != null) {
+                isClosing = true;
+                stream.close();
+                return;
+            }
             writer.close();
         } catch (IOException e) {
         }
     }
 
+    public int droppedCount() {
+        return dropped;                     // Lines that did not fit or, binary, did not match
+    }
+
+    // --------------------------------- Async mode ------------------------------------------------
+
+    private void startWriter() {
+        full = new SpscQueue<Block>(BLOCKS);
+        free = new SpscQueue<Block>(BLOCKS);
+        for (int i = 1; i < BLOCKS; i++) free.offer(new Block());
+        block = new Block();
+        writerThread = new Thread(new Runnable() {
+            public void run() {
+                writeBlocks();
+            }
+        }, "DataLogger");
+        writerThread.setDaemon(true);
+        writerThread.start();
+    }
+
+    private synchronized void queueLine() {
+        // OpMode thread: copy the line into the current buffer, never waits for the writer
+        if (!reserve(encodedLength(lineBuffer))) return;
+        block.buffer.clear().position(block.length);
+        encode(lineBuffer, block.buffer);
+        block.length = block.buffer.position();
+        checkAge();
+    }
+
+    private synchronized boolean queueBytes(byte[] data, int length) {
+        if (!reserve(length)) return false;
+        System.arraycopy(data, 0, block.data, block.length, length);
+        block.length += length;
+        checkAge();
+        return true;
+    }
+
+    private boolean reserve(int size) {
+        // Monitor is held: make room for size bytes, false when the line is dropped
+        if (block != null && block.length + size > BLOCK_SIZE) handOver();
+        if (block == null) block = free.poll();
+        if (block == null || size > BLOCK_SIZE) {
+            dropped++;
+            return false;
+        }
+        if (block.length == 0) block.startMillis = System.currentTimeMillis();
+        return true;
+    }
+
+    private void checkAge() {
+        if (System.currentTimeMillis() - block.startMillis >= FLUSH_MILLIS) handOver();
+    }
+
+    private void handOver() {
+        // Monitor is held
+        full.offer(block);                  // Always fits, there are only BLOCKS buffers
+        LockSupport.unpark(writerThread);
+        block = free.poll();
+    }
+
+    private synchronized void handOverStale() {
+        // Writer thread: a buffer nobody added to for FLUSH_MILLIS is written anyway, so the
+        // last lines reach the card when logging stops without a close
+        if (isClosing || block == null || block.length == 0) return;
+        if (System.currentTimeMillis() - block.startMillis >= FLUSH_MILLIS) handOver();
+    }
+
+    private void writeBlocks() {
+        // Writer thread
+        while (true) {
+            Block next = full.poll();
+            if (next == null) {
+                if (!isClosing) {
+                    LockSupport.parkNanos(FLUSH_MILLIS * 1000000L);
+                    handOverStale();
+                    continue;
+                }
+                next = full.poll();         // The last hand over came before isClosing
+                if (next == null) break;
+            }
+            try {
+                stream.write(next.data, 0, next.length);
+                stream.flush();
+            } catch (IOException e) {
+            }
+            next.length = 0;
+            free.offer(next);
+        }
+        try {
+            stream.close();
+        } catch (IOException e) {
+        }
+    }
+
+    private void stopWriter() {
+        Thread thread = writerThread;
+        synchronized (this) {
+            if (block != null && block.length > 0) full.offer(block);
+            block = null;
+            isClosing = true;
+        }
+        LockSupport.unpark(thread);
+        try {
+            thread.join();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        writerThread = null;
+        lineBuffer.setLength(0);            // Nothing more is written
+    }
+
+    // --------------------------------- Binary format --------------------------------------------
+
+    private void startRecord(long nanoTime) {
+        record.clear();
+        record.putLong(Math.max(nanoTime - nsBase, 1L));   // Since construction, never 0
+        lineFields = 0;
+        lineNames = 0;
+        isBadLine = false;
+    }
+
+    private boolean addBinary(byte type) {
+        // True when the value should be put into record
+        checkFreeForm();
+        if (lineFields >= MAX_COLUMNS) {
+            isBadLine = true;
+            return false;
+        }
+        lineTypes[lineFields++] = type;
+        return true;
+    }
+
+    private void addName(String name) {
+        if (columnTypes == null && lineNames == lineFields && lineFields < MAX_COLUMNS) {
+            names[lineNames++] = name;
+            lineFields++;
+        } else {
+            isBadLine = true;               // Text in a data line
+            lineFields++;
+        }
+    }
+
+    private void flushRecord() {
+        if (columnTypes == null && lineFields > 0 && lineNames == lineFields) {
+            nameCount = lineNames;          // The names line, the header waits for the types
+        } else if (lineFields > 0) {
+            if (columnTypes == null && !isBadLine) writeHeader(lineTypes, names, nameCount, lineFields);
+            if (!isBadLine && matchesColumns()) {
+                writeBytes(record.array(), record.position());
+            } else {
+                dropped++;
+            }
+        }
+        startRecord(System.nanoTime());
+    }
+
+    private void writeHeader(byte[] types, String[] names, int nameCount, int columns) {
+        columnTypes = new byte[columns];
+        System.arraycopy(types, 0, columnTypes, 0, columns);
+        byte[][] nameBytes = new byte[columns][];
+        int size = 16;
+        for (int c = 0; c < columns; c++) {
+            String name = c < nameCount ? names[c] : "c" + (c + 1);
+            try {
+                nameBytes[c] = name.getBytes("UTF-8");
+            } catch (IOException e) {
+                nameBytes[c] = new byte[0];
+            }
+            size += 3 + nameBytes[c].length;
+        }
+        ByteBuffer header = ByteBuffer.allocate(size).order(ByteOrder.LITTLE_ENDIAN);
+        header.putInt(MAGIC);
+        header.putInt(columns);
+        header.putLong(msBase);
+        for (int c = 0; c < columns; c++) {
+            header.put(columnTypes[c]);
+            header.putShort((short) nameBytes[c].length);
+            header.put(nameBytes[c]);
+        }
+        if (writerThread == null) {
+            writeBytes(header.array(), size);
+        } else if (size > BLOCK_SIZE) {
+            // Long names: nothing was queued before the header, so the writer is idle and the
+            // stream can be written from here
+            try {
+                stream.write(header.array(), 0, size);
+            } catch (IOException e) {
+                throw new IllegalStateException("DataLogger header not written", e);
+            }
+        } else if (!queueBytes(header.array(), size)) {
+            throw new IllegalStateException("DataLogger header not queued");
+        }
+    }
+
+    private boolean matchesColumns() {
+        if (lineFields != columnTypes.length) return false;
+        for (int c = 0; c < lineFields; c++) {
+            if (lineTypes[c] != columnTypes[c]) return false;
+        }
+        return true;
+    }
+
+    private void writeBytes(byte[] data, int length) {
+        if (isMapped) {
+            if (reserveMapped(length)) map.put(data, 0, length);
+            return;
+        }
+        if (writerThread != null) {
+            queueBytes(data, length);
+            return;
+        }
+        if (isClosing) return;
+        try {
+            stream.write(data, 0, length);
+        } catch (IOException e) {
+        }
+    }
+
+    private static int encodedLength(CharSequence line) {
+        int size = 0;
+        for (int i = 0; i < line.length(); i++) {
+            char c = line.charAt(i);
+            size += c < 0x80 ? 1 : c < 0x800 ? 2 : 3;
+        }
+        return size;
+    }
+
+    private static void encode(CharSequence line, ByteBuffer to) {
+        // UTF-8, surrogate pairs are encoded one char at a time
+        for (int i = 0; i < line.length(); i++) {
+            char c = line.charAt(i);
+            if (c < 0x80) {
+                to.put((byte) c);
+            } else if (c < 0x800) {
+                to.put((byte) (0xC0 | (c >> 6)));
+                to.put((byte) (0x80 | (c & 0x3F)));
+            } else {
+                to.put((byte) (0xE0 | (c >> 12)));
+                to.put((byte) (0x80 | ((c >> 6) & 0x3F)));
+                to.put((byte) (0x80 | (c & 0x3F)));
+            }
+        }
+    }
+
+    // --------------------------------- Mapped mode ----------------------------------------------
+
+    private boolean reserveMapped(int size) {
+        // Map the next chunk when size bytes do not fit, false when the line is dropped
+        if (map == null) return false;      // Closed, or the file failed
+        if (map.remaining() >= size) return true;
+        try {
+            mapStart += map.position();
+            map = channel.map(FileChannel.MapMode.READ_WRITE, mapStart, Math.max(MAP_CHUNK, size));
+            return true;
+        } catch (IOException e) {
+            map = null;
+            dropped++;
+            return false;
+        }
+    }
+
+    private void closeMapped() {
+        if (channel == null) return;
+        long end = mapStart;
+        if (map != null) {
+            end += map.position();
+            map.force();
+            map = null;
+        }
+        try {
+            channel.truncate(end);          // Drop the unused part of the last chunk
+            channel.close();
+            mappedFile.close();
+        } catch (IOException e) {
+        }
+        channel = null;
+    }
+
     public void addField(String s) {
+        checkFreeForm();
+        if (isBinary) {
+            addName(s);
+            return;
+        }
+        appendText(s);
+    }
+
+    private void appendText(String s) {
         if (lineBuffer.length() > 0) {
             lineBuffer.append(',');
         }
         lineBuffer.append(s);
     }
 
+    private void appendThousandths(long value) {
+        // value / 1000 with 3 decimals, as String.format("%.3f") without boxing or a String
+        if (lineBuffer.length() > 0) {
+            lineBuffer.append(',');
+        }
+        if (value < 0) {
+            lineBuffer.append('-');
+            value = -value;
+        }
+        long fraction = value % 1000;
+        lineBuffer.append(value / 1000).append('.');
+        if (fraction < 100) lineBuffer.append('0');
+        if (fraction < 10) lineBuffer.append('0');
+        lineBuffer.append(fraction);
+    }
+
     public void addField(char c) {
+        checkFreeForm();
+        if (isBinary) {
+            if (addBinary(TYPE_CHAR)) record.putChar(c);
+            return;
+        }
         if (lineBuffer.length() > 0) {
             lineBuffer.append(',');
         }
@@ -76,33 +576,313 @@ public class DataLogger {
     }
 
     public void addField(boolean b) {
+        if (isBinary) {
+            if (addBinary(TYPE_BOOLEAN)) record.put((byte) (b ? 1 : 0));
+            return;
+        }
         addField(b ? '1' : '0');
     }
 
     public void addField(byte b) {
+        if (isBinary) {
+            addField((int) b);
+            return;
+        }
         addField(Byte.toString(b));
     }
 
     public void addField(short s) {
+        if (isBinary) {
+            addField((int) s);
+            return;
+        }
         addField(Short.toString(s));
     }
 
+    public void addField(int i) {
+        if (isBinary) {
+            if (addBinary(TYPE_INT)) record.putInt(i);
+            return;
+        }
+        addField(Integer.toString(i));
+    }
+
     public void addField(long l) {
+        if (isBinary) {
+            if (addBinary(TYPE_LONG)) record.putLong(l);
+            return;
+        }
         addField(Long.toString(l));
     }
 
     public void addField(float f) {
+        if (isBinary) {
+            if (addBinary(TYPE_FLOAT)) record.putFloat(f);
+            return;
+        }
         addField(Float.toString(f));
     }
 
     public void addField(double d) {
+        if (isBinary) {
+            if (addBinary(TYPE_DOUBLE)) record.putDouble(d);
+            return;
+        }
         addField(Double.toString(d));
     }
 
     public void newLine() {
+        checkFreeForm();
+        hasLines = true;
+        flushLineBuffer();
+    }
+
+    // --------------------------------- Schema -------------------------------------------------
+
+    public abstract class Column {
+        final int index;
+
+        Column(String name, byte type) {
+            index = declare(name, type);
+        }
+
+        public String name() {
+            return columnNames[index];
+        }
+    }
+
+    public final class IntColumn extends Column {
+        IntColumn(String name) {
+            super(name, TYPE_INT);
+        }
+
+        public void set(int value) {
+            rowBits[index] = value;
+            rowSet[index] = true;
+        }
+    }
+
+    public final class LongColumn extends Column {
+        LongColumn(String name) {
+            super(name, TYPE_LONG);
+        }
+
+        public void set(long value) {
+            rowBits[index] = value;
+            rowSet[index] = true;
+        }
+    }
+
+    public final class FloatColumn extends Column {
+        FloatColumn(String name) {
+            super(name, TYPE_FLOAT);
+        }
+
+        public void set(float value) {
+            rowBits[index] = Float.floatToRawIntBits(value);
+            rowSet[index] = true;
+        }
+    }
+
+    public final class DoubleColumn extends Column {
+        DoubleColumn(String name) {
+            super(name, TYPE_DOUBLE);
+        }
+
+        public void set(double value) {
+            rowBits[index] = Double.doubleToRawLongBits(value);
+            rowSet[index] = true;
+        }
+    }
+
+    public final class BooleanColumn extends Column {
+        BooleanColumn(String name) {
+            super(name, TYPE_BOOLEAN);
+        }
+
+        public void set(boolean value) {
+            rowBits[index] = value ? 1 : 0;
+            rowSet[index] = true;
+        }
+    }
+
+    public IntColumn intColumn(String name) {
+        return new IntColumn(name);
+    }
+
+    public LongColumn longColumn(String name) {
+        return new LongColumn(name);
+    }
+
+    public FloatColumn floatColumn(String name) {
+        return new FloatColumn(name);
+    }
+
+    public DoubleColumn doubleColumn(String name) {
+        return new DoubleColumn(name);
+    }
+
+    public BooleanColumn booleanColumn(String name) {
+        return new BooleanColumn(name);
+    }
+
+    private int declare(String name, byte type) {
+        if (isRowsStarted) throw new IllegalStateException("Column " + name + " declared after startRows()");
+        if (hasLines) throw new IllegalStateException("Column " + name + " declared after newLine()");
+        if (name == null || name.length() == 0) throw new IllegalArgumentException("Column without a name");
+        if (name.equals("sec") || name.equals("d ms")) {
+            throw new IllegalArgumentException("Column " + name + " is the time stamp");
+        }
+        for (int c = 0; c < schemaColumns; c++) {
+            if (columnNames[c].equals(name)) throw new IllegalArgumentException("Duplicate column " + name);
+        }
+        if (schemaColumns >= MAX_COLUMNS) throw new IllegalStateException("More than " + MAX_COLUMNS + " columns");
+        columnNames[schemaColumns] = name;
+        schemaTypes[schemaColumns] = type;
+        return schemaColumns++;
+    }
+
+    private void checkFreeForm() {
+        if (schemaColumns > 0) throw new IllegalStateException("DataLogger has a schema, use writeRow()");
+    }
+
+    public void startRows() {
+        // Check the schema and write the header, call once after the last declaration
+        if (isRowsStarted) return;
+        if (schemaColumns == 0) throw new IllegalStateException("DataLogger has no columns");
+        isRowsStarted = true;
+        if (isBinary) {
+            writeHeader(schemaTypes, columnNames, schemaColumns, schemaColumns);
+            startRecord(System.nanoTime()); // As the CSV header line does
+            return;
+        }
+        for (int c = 0; c < schemaColumns; c++) appendText(columnNames[c]);
+        flushLineBuffer();
+    }
+
+    public void writeRow() {
+        checkRows();
+        clearRow();
+        emitRow();
+    }
+
+    private void checkRows() {
+        if (!isRowsStarted) throw new IllegalStateException("DataLogger.startRows() was not called");
+    }
+
+    private void clearRow() {
+        // Take the set flags of the row into rowMask, MAX_COLUMNS fits a long
+        rowMask = 0L;
+        for (int c = 0; c < schemaColumns; c++) {
+            if (rowSet[c]) {
+                rowMask |= 1L << c;
+            } else {
+                missing++;
+                rowBits[c] = missingBits(schemaTypes[c]);
+            }
+            rowSet[c] = false;
+        }
+    }
+
+    static long missingBits(byte type) {
+        // Raw bits of a value that was not set, see DataLogExport
+        switch (type) {
+            case TYPE_INT:
+                return MISSING_INT;
+            case TYPE_LONG:
+                return MISSING_LONG;
+            case TYPE_FLOAT:
+                return Float.floatToRawIntBits(Float.NaN);
+            case TYPE_DOUBLE:
+                return Double.doubleToRawLongBits(Double.NaN);
+            default:
+                return MISSING_BOOLEAN;
+        }
+    }
+
+    int snapshotLength() {
+        return schemaColumns + 1;           // The values, then the mask of the set ones
+    }
+
+    void snapshotRow(long[] to, int offset) {
+        // Take the row without writing it, for FlightRecorder
+        checkRows();
+        clearRow();
+        System.arraycopy(rowBits, 0, to, offset, schemaColumns);
+        to[offset + schemaColumns] = rowMask;
+    }
+
+    void writeRecordedRow(long[] from, int offset, long nanoTime) {
+        // Write a row taken earlier with snapshotRow(), stamped with the time it was taken
+        checkRows();
+        System.arraycopy(from, offset, rowBits, 0, schemaColumns);
+        rowMask = from[offset + schemaColumns];
+        if (isBinary) {
+            record.putLong(0, Math.max(nanoTime - nsStart, 1L));
+        } else {
+            lineBuffer.setLength(0);
+            appendThousandths((nanoTime - nsStart + 500000L) / 1000000L);
+            appendThousandths((nanoTime - lastRowNanos + 500L) / 1000L);
+        }
+        lastRowNanos = nanoTime;
+        emitRow();
+    }
+
+    private void emitRow() {
+        if (isBinary) {
+            for (int c = 0; c < schemaColumns; c++) {
+                long bits = rowBits[c];
+                switch (schemaTypes[c]) {
+                    case TYPE_INT:
+                        record.putInt((int) bits);
+                        break;
+                    case TYPE_LONG:
+                        record.putLong(bits);
+                        break;
+                    case TYPE_FLOAT:
+                        record.putInt((int) bits);
+                        break;
+                    case TYPE_DOUBLE:
+                        record.putLong(bits);
+                        break;
+                    default:
+                        record.put((byte) bits);
+                        break;
+                }
+            }
+            writeBytes(record.array(), record.position());
+            startRecord(System.nanoTime());
+            return;
+        }
+        for (int c = 0; c < schemaColumns; c++) {
+            long bits = rowBits[c];
+            lineBuffer.append(',');
+            if ((rowMask & (1L << c)) == 0L) continue;     // Not set, an empty cell
+            switch (schemaTypes[c]) {
+                case TYPE_INT:
+                    lineBuffer.append((int) bits);
+                    break;
+                case TYPE_LONG:
+                    lineBuffer.append(bits);
+                    break;
+                case TYPE_FLOAT:
+                    lineBuffer.append(Float.intBitsToFloat((int) bits));
+                    break;
+                case TYPE_DOUBLE:
+                    lineBuffer.append(Double.longBitsToDouble(bits));
+                    break;
+                default:
+                    lineBuffer.append(bits != 0 ? '1' : '0');
+                    break;
+            }
+        }
         flushLineBuffer();
     }
 
+    public int missingCount() {
+        return missing;
+    }
+
     @Override
     protected void finalize() throws Throwable {
         closeDataLogger();
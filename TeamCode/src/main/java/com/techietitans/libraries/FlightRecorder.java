@@ -0,0 +1,217 @@
+package com.techietitans.libraries;
+
+/**
+ * Keeps the last rows of a DataLogger schema in memory and writes only the window around an
+ * event to the file, e.g. a gyro turn overshoot, an encoder drive timeout or the fall into
+ * recovery state 99.
+ * <p/>
+ * Every record() takes the row set through the DataLogger column handles into a ring, with
+ * its time stamp. When a trigger fires, the rows of the last preMillis are written, then the
+ * rows up to postMillis after it; a trigger within the window stretches it. Rows keep the
+ * time they were taken. The recorder adds an Event column holding the number of the trigger
+ * that fired on the row (1 for the first one made), 0 on the others. At most
+ * MAX_ROWS_PER_RECORD rows are written per call, so a trigger does not stall one loop; the
+ * ring has to hold the pre window plus that catch-up. Nothing allocates after construction.
+ * <p/>
+ * Triggers are edges, not levels: check() fires when its condition becomes true, a state
+ * trigger when state() moves into its state. Usage:
+ * <pre>
+ *   dl = new DataLogger("Dl_TT_Flight", DataLogger.Format.BINARY, DataLogger.Mode.MAPPED);
+ *   recorder = new FlightRecorder(dl, 1000, 2000, 1000);
+ *   gyroColumn = dl.intColumn("Gyro");
+ *   FlightRecorder.Trigger lost = recorder.stateTrigger("Recovery", 99);
+ *   FlightRecorder.Trigger overshoot = recorder.trigger("Overshoot");
+ *   dl.startRows();
+ *   ...
+ *   gyroColumn.set(gyro.getIntegratedZValue());
+ *   overshoot.check(Math.abs(error) > 10);
+ *   recorder.state(currentState);
+ *   recorder.record();
+ * </pre>
+ */
+public class FlightRecorder {
+    static final int
+            MAX_TRIGGERS = 16,
+            MAX_ROWS_PER_RECORD = 50;       // Rows written by one record() call
+
+    // --------------------------------- CLASS VARIABLES -------------------------------------------
+    private final DataLogger logger;
+    private final DataLogger.IntColumn event;
+    private final int capacity;             // Rows in the ring
+    private final long preNanos;
+    private final long postNanos;
+    private long[] bits;                    // Row snapshots, rowLength each, made on the first row
+    private final long[] rowNanos;
+    private int rowLength;
+
+    private long count;                     // Rows recorded since construction
+    private long next;                      // Next row to write while capturing
+    private long lastWritten = -1L;         // Last row written, a new window starts after it
+    private boolean isCapturing;
+    private long captureUntil;              // Rows taken after this end the window
+    private int pendingEvent;               // Trigger number for the next row
+    private int lost;                       // Window rows overwritten before they were written
+    private int written;                    // Rows written to the file
+
+    private final Trigger[] triggers = new Trigger[MAX_TRIGGERS];
+    private int triggerCount;
+    private int fired;                      // Triggers that fired
+    private Trigger lastFired;
+    private int lastState = Integer.MIN_VALUE;
+
+    public class Trigger {
+        private final int number;           // Event column value
+        private final String name;
+        private final int state;            // State that fires it, only for state triggers
+        private final boolean isStateTrigger;
+        private boolean wasTrue;
+        private int fires;
+
+        Trigger(String name, boolean isStateTrigger, int state) {
+            this.number = triggerCount + 1;
+            this.name = name;
+            this.isStateTrigger = isStateTrigger;
+            this.state = state;
+        }
+
+        public void fire() {
+            FlightRecorder.this.fire(this);
+        }
+
+        public void check(boolean condition) {
+            if (condition && !wasTrue) fire();
+            wasTrue = condition;
+        }
+
+        public String name() {
+            return name;
+        }
+
+        public int number() {
+            return number;
+        }
+
+        public int fireCount() {
+            return fires;
+        }
+    }
+
+// --------------------------------- CLASS INIT AND CLOSE ---------------------------------------
+
+    public FlightRecorder(DataLogger logger, int capacity, int preMillis, int postMillis) {
+        // Make it before the columns of logger are declared, the Event column comes first
+        this.logger = logger;
+        this.capacity = Math.max(capacity, 2);
+        preNanos = preMillis * 1000000L;
+        postNanos = postMillis * 1000000L;
+        rowNanos = new long[this.capacity];
+        event = logger.intColumn("Event");
+    }
+
+    public void close() {
+        // Write what is left of a window, as far as it was recorded, then close the logger
+        while (isCapturing && next < count) writeRows(Long.MAX_VALUE);
+        logger.closeDataLogger();
+    }
+
+    public Trigger trigger(String name) {
+        return addTrigger(new Trigger(name, false, 0));
+    }
+
+    public Trigger stateTrigger(String name, int state) {
+        return addTrigger(new Trigger(name, true, state));
+    }
+
+    private Trigger addTrigger(Trigger trigger) {
+        if (triggerCount >= MAX_TRIGGERS) throw new IllegalStateException("Too many triggers");
+        triggers[triggerCount++] = trigger;
+        return trigger;
+    }
+
+    //------------------------------------------------- Recording ------------------------------
+
+    public void state(int state) {
+        // Fires the state triggers of state when the state machine moves into it
+        if (state == lastState) return;
+        lastState = state;
+        for (int t = 0; t < triggerCount; t++) {
+            if (triggers[t].isStateTrigger && triggers[t].state == state) triggers[t].fire();
+        }
+    }
+
+    public void record() {
+        // Once per loop, after the columns are set and the triggers checked
+        if (bits == null) {
+            rowLength = logger.snapshotLength();
+            bits = new long[capacity * rowLength];
+        }
+        long now = System.nanoTime();
+        event.set(pendingEvent);
+        pendingEvent = 0;
+        int slot = (int) (count % capacity);
+        logger.snapshotRow(bits, slot * rowLength);
+        rowNanos[slot] = now;
+        count++;
+        if (isCapturing) writeRows(MAX_ROWS_PER_RECORD);
+    }
+
+    private void fire(Trigger trigger) {
+        long now = System.nanoTime();
+        trigger.fires++;
+        fired++;
+        lastFired = trigger;
+        if (pendingEvent == 0) pendingEvent = trigger.number;  // First one of the loop wins
+        captureUntil = Math.max(captureUntil, now + postNanos);
+        if (isCapturing) return;
+        isCapturing = true;
+        // Back to the oldest row of the pre window that is still in the ring and was not written
+        long oldest = Math.max(Math.max(0L, count - capacity), lastWritten + 1);
+        next = count;
+        while (next > oldest && rowNanos[(int) ((next - 1) % capacity)] >= now - preNanos) next--;
+    }
+
+    private void writeRows(long limit) {
+        long overwritten = count - capacity;
+        if (next < overwritten) {
+            lost += (int) (overwritten - next);
+            next = overwritten;
+        }
+        for (long n = 0; n < limit && next < count; n++) {
+            int slot = (int) (next % capacity);
+            if (rowNanos[slot] > captureUntil) {
+                isCapturing = false;        // Window done
+                return;
+            }
+            logger.writeRecordedRow(bits, slot * rowLength, rowNanos[slot]);
+            written++;
+            lastWritten = next++;
+        }
+        if (next == count && System.nanoTime() > captureUntil) isCapturing = false;
+    }
+
+    //------------------------------------------------- Results --------------------------------
+
+    public boolean isCapturing() {
+        return isCapturing;
+    }
+
+    public int firedCount() {
+        return fired;
+    }
+
+    public String lastTrigger() {
+        return lastFired == null ? "" : lastFired.name;
+    }
+
+    public int writtenCount() {
+        return written;
+    }
+
+    public int lostCount() {
+        return lost;
+    }
+
+    public long recordedCount() {
+        return count;
+    }
+}
@@ -43,6 +43,8 @@ public abstract class HardwareClass_V2 extends OpMode {
 
     protected static ModernRoboticsI2cGyro gyro  = null;
     protected static ModernRoboticsI2cColorSensor Color_jewel  = null;
+    protected static ColorClassifier jewelClassifier = null;
+    protected static SequentialDecision jewelDecision = null;
 
     //Init Parameters
 
@@ -68,6 +70,10 @@ public abstract class HardwareClass_V2 extends OpMode {
     public static final double JEWEL_PUSHER_ARM_REST= 5/256.0;
     public static final double JEWEL_PUSHER_ARM_ENGAGE= 18/256.0;
 
+    // Jewel color classes, in the order they are added to jewelClassifier
+    public static final int RED_JEWEL = 0;
+    public static final int BLUE_JEWEL = 1;
+
     //******
 
     //185
@@ -118,6 +124,10 @@ public abstract class HardwareClass_V2 extends OpMode {
         } catch (Exception p_exeception) {
             Color_jewel = null;
         }
+        jewelClassifier = new ColorClassifier();
+        jewelClassifier.addClass("Red", 255, 40, 40);
+        jewelClassifier.addClass("Blue", 40, 80, 255);
+        jewelDecision = new SequentialDecision(jewelClassifier, RED_JEWEL, BLUE_JEWEL);
     }
 
     @Override
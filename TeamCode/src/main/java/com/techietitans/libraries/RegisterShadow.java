@@ -0,0 +1,79 @@
+package com.techietitans.libraries;
+
+/**
+ * Last known value of each register of one I2C device, with the time it was seen on the bus.
+ * <p/>
+ * Wire updates the shadow from every read reply and from every write it dispatches, both in
+ * bus order, so the shadow never goes back to a value older than one already stored. Readers
+ * state how old a value may be; device IDs and configuration registers can be served from the
+ * shadow for seconds, sensor data only for a few milliseconds or not at all.
+ * <p/>
+ * Times are Wire microseconds. Written by the thread that owns the bus and read by the OpMode
+ * thread, so the methods are synchronized.
+ */
+public class RegisterShadow {
+    public static final int FOREVER = Integer.MAX_VALUE;     // Tolerance of constant registers
+
+    private final byte[] value = new byte[256];
+    private final long[] seenMicros = new long[256];        // -1 when never seen
+    private int hits;                   // Reads answered from the shadow
+    private int misses;                 // Reads that needed the bus
+
+    public RegisterShadow() {
+        invalidate();
+    }
+
+    // --------------------------------- Updating, used by Wire -----------------------------------
+
+    synchronized void update(byte[] cache, long micros) {
+        int regNumber = cache[Wire.REG_NUMBER] & 0xff;
+        int count = Math.min(cache[Wire.REG_COUNT], Wire.CACHE_SIZE - Wire.DATA_OFFSET);
+        for (int i = 0; i < count; i++) {                   // Negative count does nothing
+            int reg = (regNumber + i) & 0xff;
+            value[reg] = cache[Wire.DATA_OFFSET + i];
+            seenMicros[reg] = micros;
+        }
+    }
+
+    synchronized long load(int regNumber, int regCount, int maxAgeMicros, long now, byte[] cache) {
+        // Copy the registers into the data part of cache when all are fresh enough.
+        // Returns the time of the oldest of them, -1 on a miss.
+        long oldest = Long.MAX_VALUE;
+        for (int i = 0; i < regCount; i++) {
+            long seen = seenMicros[(regNumber + i) & 0xff];
+            if (seen < 0 || now - seen > maxAgeMicros) {
+                misses++;
+                return -1L;
+            }
+            oldest = Math.min(oldest, seen);
+        }
+        for (int i = 0; i < regCount; i++) {
+            cache[Wire.DATA_OFFSET + i] = value[(regNumber + i) & 0xff];
+        }
+        hits++;
+        return oldest;
+    }
+
+    // --------------------------------- Public methods -------------------------------------------
+
+    public synchronized void invalidate() {
+        for (int reg = 0; reg < 256; reg++) seenMicros[reg] = -1L;
+    }
+
+    public synchronized void invalidate(int regNumber) {
+        seenMicros[regNumber & 0xff] = -1L;
+    }
+
+    public synchronized int hitCount() {
+        return hits;
+    }
+
+    public synchronized int missCount() {
+        return misses;
+    }
+
+    public synchronized double hitRatio() {
+        int reads = hits + misses;
+        return reads > 0 ? (double) hits / reads : 0.0;
+    }
+}
@@ -0,0 +1,196 @@
+package com.techietitans.libraries;
+
+/**
+ * Fixed size ring of time stamped sensor samples, e.g. the RGBC readings of AdaFruitCS.
+ * <p/>
+ * One thread adds samples, any number of threads read them without locks: a slot is filled
+ * before the volatile sample count moves past it, and a reader checks the count again after
+ * copying to find out whether the writer lapped it. The slot being filled is the one after
+ * the newest, so a reader sees at most capacity - 1 samples. Nothing allocates after
+ * construction.
+ * <p/>
+ * The filters below pull from a ring on demand, so the writer does not know about them. A
+ * filter keeps its own scratch space, use one instance per reading thread.
+ */
+public class SampleRing {
+    private final int capacity;
+    private final int channels;
+    private final long[] micros;
+    private final int[] values;             // channels values per slot
+    private volatile long count;            // Samples added since construction
+    private volatile int fence;             // Written by readers to keep their copy before the check
+
+    public SampleRing(int capacity, int channels) {
+        this.capacity = Math.max(capacity, 2);
+        this.channels = Math.max(channels, 1);
+        micros = new long[this.capacity];
+        values = new int[this.capacity * this.channels];
+    }
+
+    // --------------------------------- Writer side ---------------------------------------------
+
+    public void add(long timeStamp, int v0, int v1, int v2, int v3) {
+        int slot = (int) (count % capacity);
+        int offset = slot * channels;
+        micros[slot] = timeStamp;
+        if (channels > 0) values[offset] = v0;
+        if (channels > 1) values[offset + 1] = v1;
+        if (channels > 2) values[offset + 2] = v2;
+        if (channels > 3) values[offset + 3] = v3;
+        count = count + 1;                  // Publish the slot, single writer
+    }
+
+    public void add(long timeStamp, int[] sample) {
+        int slot = (int) (count % capacity);
+        micros[slot] = timeStamp;
+        System.arraycopy(sample, 0, values, slot * channels, channels);
+        count = count + 1;
+    }
+
+    // --------------------------------- Reader side ---------------------------------------------
+
+    public int capacity() {
+        return capacity;
+    }
+
+    public int channels() {
+        return channels;
+    }
+
+    public long count() {
+        return count;
+    }
+
+    public int size() {
+        return (int) Math.min(count, capacity - 1);
+    }
+
+    public long micros(int age) {
+        // Age 0 is the newest sample, 0 when there is no such sample
+        long n = count;
+        if (age < 0 || age >= Math.min(n, capacity - 1)) return 0L;
+        return micros[(int) ((n - 1 - age) % capacity)];
+    }
+
+    public int value(int age, int channel) {
+        long n = count;
+        if (age < 0 || age >= Math.min(n, capacity - 1)) return 0;
+        return values[(int) ((n - 1 - age) % capacity) * channels + channel];
+    }
+
+    public boolean copySample(long index, long[] toMicros, int[] toValues) {
+        // Sample number index since construction, false when not added yet or overwritten
+        if (index < 0 || index >= count) return false;
+        int slot = (int) (index % capacity);
+        toMicros[0] = micros[slot];
+        System.arraycopy(values, slot * channels, toValues, 0, channels);
+        fence = 0;
+        return count - index < capacity;
+    }
+
+    public int copyWindow(int samples, long[] toMicros, int[] toValues) {
+        // Newest samples, oldest first, values interleaved by channel. Returns the number copied.
+        while (true) {
+            long n = count;
+            int copied = (int) Math.min(Math.min(samples, n), capacity - 1);
+            long first = n - copied;
+            for (int i = 0; i < copied; i++) {
+                int slot = (int) ((first + i) % capacity);
+                if (toMicros != null) toMicros[i] = micros[slot];
+                System.arraycopy(values, slot * channels, toValues, i * channels, channels);
+            }
+            fence = 0;
+            if (count - first < capacity) return copied;    // Not lapped while copying
+        }
+    }
+
+    // --------------------------------- Streaming filters ---------------------------------------
+
+    public static class Average {
+        private final SampleRing ring;
+        private final int window;
+        private final int[] scratch;
+
+        public Average(SampleRing ring, int window) {
+            this.ring = ring;
+            this.window = Math.max(1, Math.min(window, ring.capacity() - 1));
+            scratch = new int[this.window * ring.channels()];
+        }
+
+        public double value(int channel) {
+            int n = ring.copyWindow(window, null, scratch);
+            if (n == 0) return 0.0;
+            long sum = 0;
+            for (int i = 0; i < n; i++) sum += scratch[i * ring.channels() + channel];
+            return (double) sum / n;
+        }
+    }
+
+    public static class Median {
+        private final SampleRing ring;
+        private final int window;
+        private final int[] scratch;
+        private final int[] sorted;
+
+        public Median(SampleRing ring, int window) {
+            this.ring = ring;
+            this.window = Math.max(1, Math.min(window, ring.capacity() - 1));
+            scratch = new int[this.window * ring.channels()];
+            sorted = new int[this.window];
+        }
+
+        public int value(int channel) {
+            int n = ring.copyWindow(window, null, scratch);
+            if (n == 0) return 0;
+            for (int i = 0; i < n; i++) {               // Insertion sort, windows are small
+                int v = scratch[i * ring.channels() + channel];
+                int j = i;
+                while (j > 0 && sorted[j - 1] > v) {
+                    sorted[j] = sorted[j - 1];
+                    j--;
+                }
+                sorted[j] = v;
+            }
+            return sorted[n / 2];
+        }
+    }
+
+    public static class Smoothing {
+        // Exponential smoothing with a time constant, so a changing sample rate keeps the lag
+        private final SampleRing ring;
+        private final double tauMicros;
+        private final double[] state;
+        private final int[] sample;
+        private final long[] sampleMicros = new long[1];
+        private long done;                  // Ring samples folded in
+        private boolean isStarted;
+        private long lastMicros;
+
+        public Smoothing(SampleRing ring, int tauMicros) {
+            this.ring = ring;
+            this.tauMicros = Math.max(tauMicros, 1);
+            state = new double[ring.channels()];
+            sample = new int[ring.channels()];
+        }
+
+        public double value(int channel) {
+            long n = ring.count();
+            while (done < n) {
+                if (!ring.copySample(done, sampleMicros, sample)) {
+                    done = Math.max(done + 1, ring.count() - ring.capacity() + 1);  // Lapped
+                    continue;
+                }
+                if (!isStarted) {
+                    for (int c = 0; c < state.length; c++) state[c] = sample[c];
+                    isStarted = true;
+                } else {
+                    double alpha = 1.0 - Math.exp(-(sampleMicros[0] - lastMicros) / tauMicros);
+                    for (int c = 0; c < state.length; c++) state[c] += alpha * (sample[c] - state[c]);
+                }
+                lastMicros = sampleMicros[0];
+                done++;
+            }
+            return state[channel];
+        }
+    }
+}
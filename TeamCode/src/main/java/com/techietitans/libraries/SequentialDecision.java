@@ -0,0 +1,167 @@
+package com.techietitans.libraries;
+
+import com.qualcomm.hardware.modernrobotics.ModernRoboticsI2cColorSensor;
+
+/**
+ * Decides between two classes of a ColorClassifier, e.g. red and blue jewel, from as few
+ * samples as the readings allow.
+ * <p/>
+ * This is Wald's sequential probability ratio test: every sample adds the log likelihood
+ * ratio of the two classes to a running sum, and the test stops when the sum leaves the band
+ * set by the error rate, ln((1 - e) / e) either way. Clear readings decide in a few samples,
+ * ambiguous ones keep the test going until the timeout, when the sign of the sum is taken
+ * (UNKNOWN if no sample counted). Samples the classifier calls UNKNOWN (dark, grey, neither
+ * class) do not count.
+ * <p/>
+ * The Gaussian classes are far apart, so one clear sample has a huge likelihood ratio. Each
+ * sample is therefore trusted only as far as a sensor reading can be: it is wrong with
+ * probability SAMPLE_ERROR_RATE, which caps its step at ln((1 - p) / p). The number of samples
+ * a decision needs then follows from the error rate: 2 at 0.05, 3 at 0.01, 4 at 0.001. The
+ * error rate is kept below half of SAMPLE_ERROR_RATE, so a single glitch can not decide alone.
+ * The ModernRobotics sensor has no new-data signal, so its readings count at most once per
+ * READING_PERIOD_MILLIS, about how often it updates; a steady color still decides quickly, as
+ * an unchanged reading counts again once a period has passed. AdaFruitCS samples count when
+ * isColorUpdate() says so.
+ * <p/>
+ * The time from start() to the decision is kept, to see what the test saves over a fixed
+ * wait. Usage, with start() when the sensor is in place:
+ * <pre>
+ *   jewelDecision.add(Color_jewel);
+ *   if (jewelDecision.isDecided()) ... jewelDecision.result() ...
+ * </pre>
+ */
+public class SequentialDecision {
+    static final double
+            ERROR_RATE = 0.01,                      // Each way
+            SAMPLE_ERROR_RATE = 0.1;                // Chance that one reading is wrong
+    static final int
+            TIMEOUT_MILLIS = 1000,
+            READING_PERIOD_MILLIS = 20;             // Sensor without a new-data signal, e.g. MR
+
+    // --------------------------------- CLASS VARIABLES -------------------------------------------
+    private final ColorClassifier classifier;
+    private final int first;                // Class when the sum goes up
+    private final int second;               // Class when it goes down
+    private final double bound;             // Decide when |sum| reaches it
+    private final double maxStep;           // Most one sample can move the sum
+    private final int timeoutMillis;
+
+    private double logRatio;                // Running sum
+    private int samples;                    // Samples that counted
+    private long startNanos;
+    private long decisionNanos;             // 0 until decided
+    private int result = ColorClassifier.UNKNOWN;
+    private boolean isTimedOut;
+    private long readingNanos;              // Last reading that counted, 0 for none
+
+// --------------------------------- CLASS INIT -------------------------------------------------
+
+    public SequentialDecision(ColorClassifier classifier, int first, int second) {
+        this(classifier, first, second, ERROR_RATE, TIMEOUT_MILLIS);
+    }
+
+    public SequentialDecision(ColorClassifier classifier, int first, int second,
+                              double errorRate, int timeoutMillis) {
+        this.classifier = classifier;
+        this.first = first;
+        this.second = second;
+        double e = Math.max(1.0E-6, Math.min(errorRate, SAMPLE_ERROR_RATE / 2));
+        bound = Math.log((1.0 - e) / e);
+        maxStep = Math.log((1.0 - SAMPLE_ERROR_RATE) / SAMPLE_ERROR_RATE);
+        this.timeoutMillis = timeoutMillis;
+        start();
+    }
+
+    public void start() {
+        logRatio = 0.0;
+        samples = 0;
+        startNanos = System.nanoTime();
+        decisionNanos = 0L;
+        result = ColorClassifier.UNKNOWN;
+        isTimedOut = false;
+        readingNanos = 0L;
+    }
+
+    //------------------------------------------------- Samples --------------------------------
+
+    public boolean add(ModernRoboticsI2cColorSensor sensor) {
+        return addReading(sensor.red(), sensor.green(), sensor.blue());
+    }
+
+    public boolean addReading(int red, int green, int blue) {
+        // A sensor without a new-data signal, polled every loop: a reading counts as a new
+        // sample once READING_PERIOD_MILLIS have passed since the last one that counted
+        long now = System.nanoTime();
+        if (readingNanos != 0L && now - readingNanos < READING_PERIOD_MILLIS * 1000000L) {
+            return checkTimeout();
+        }
+        readingNanos = now;
+        return add(red, green, blue);
+    }
+
+    public boolean add(AdaFruitCS sensor) {
+        // Polls the driver, so call it instead of isColorUpdate()
+        if (!sensor.isColorUpdate()) return checkTimeout();
+        return add(sensor.red(), sensor.green(), sensor.blue());
+    }
+
+    public boolean add(int red, int green, int blue) {
+        // One new sample, true once decided, later samples are ignored
+        if (isDecided()) return true;
+        int id = classifier.classify(red, green, blue);
+        if (id != ColorClassifier.UNKNOWN) {
+            double step = classifier.logLikelihood(first) - classifier.logLikelihood(second);
+            logRatio += Math.max(-maxStep, Math.min(step, maxStep));
+            samples++;
+            if (logRatio >= bound) return decide(first);
+            if (logRatio <= -bound) return decide(second);
+        }
+        return checkTimeout();
+    }
+
+    private boolean checkTimeout() {
+        if (isDecided()) return true;
+        if (elapsedMillis() < timeoutMillis) return false;
+        isTimedOut = true;
+        if (samples == 0 || logRatio == 0.0) return decide(ColorClassifier.UNKNOWN);
+        return decide(logRatio > 0.0 ? first : second);
+    }
+
+    private boolean decide(int id) {
+        result = id;
+        decisionNanos = Math.max(System.nanoTime() - startNanos, 1L);
+        return true;
+    }
+
+    //------------------------------------------------- Results --------------------------------
+
+    public boolean isDecided() {
+        return decisionNanos > 0L;
+    }
+
+    public boolean isTimedOut() {
+        return isTimedOut;
+    }
+
+    public int result() {
+        // first or second, UNKNOWN until decided or when the timeout found no evidence
+        return result;
+    }
+
+    public double logRatio() {
+        return logRatio;
+    }
+
+    public int sampleCount() {
+        return samples;
+    }
+
+    public double decisionMillis() {
+        // Time the decision took, 0 until decided
+        return decisionNanos / 1.0E6;
+    }
+
+    public double elapsedMillis() {
+        return (System.nanoTime() - startNanos) / 1.0E6;
+    }
+}
@@ -0,0 +1,451 @@
+package com.techietitans.libraries;
+
+import com.qualcomm.robotcore.hardware.I2cAddr;
+import com.qualcomm.robotcore.hardware.I2cController;
+import com.qualcomm.robotcore.hardware.I2cDevice;
+
+import org.firstinspires.ftc.robotcore.internal.hardware.TimeWindow;
+
+import java.util.Random;
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * In-process stand-in for the I2cDevice that Wire gets from the HardwareMap, so Wire and the
+ * drivers built on it can run and be benchmarked without a Device Interface Module.
+ * <p/>
+ * The device keeps a 256 byte register file. A transaction written with
+ * writeI2cCacheToController() completes after the configured latency plus a random jitter,
+ * drawn from a seeded generator so runs are repeatable. As with the DIM, the reply only shows
+ * up in the read cache after a readI2cCacheFromController() once it is complete. portIsReady
+ * is called from the device's own thread once per callback period.
+ * <p/>
+ * On a virtual clock there is no thread: time only moves in advance(), which makes the
+ * callbacks that fall due on the way from the calling thread. Runs are then repeatable to the
+ * microsecond, as long as the code under test does not depend on its own wall clock readings.
+ * <p/>
+ * Multi-byte reads and writes auto-increment the register. Subclasses can model a sensor by
+ * overriding onRead() and onWrite().
+ */
+public class SimulatedI2cDevice implements I2cDevice {
+
+    // --------------------------------- CLASS VARIABLES -------------------------------------------
+    private final byte[] registers = new byte[256];
+    private final byte[] readCache = new byte[Wire.CACHE_SIZE];
+    private final byte[] writeCache = new byte[Wire.CACHE_SIZE];
+    private final byte[] pending = new byte[Wire.CACHE_SIZE];  // Transaction on the bus
+    private final Lock readLock = new ReentrantLock();
+    private final Lock writeLock = new ReentrantLock();
+    private final TimeWindow timeWindow = new TimeWindow();
+    private final Random random;
+
+    private volatile I2cController.I2cPortReadyCallback callback;
+    private volatile I2cController.I2cPortReadyBeginEndNotifications beginEndCallback;
+    private volatile long latencyNanos;     // Fixed part of a transaction
+    private volatile long jitterNanos;      // Random part, uniform 0 .. jitter
+    private volatile long periodNanos;      // Time between portIsReady callbacks
+    private long completeNanos;             // Completion time of the pending transaction
+    private boolean isPending;              // A transaction is on the bus
+    private int callbackCount;
+    private int transactionCount;           // Transactions written to the device
+    private Thread callbackThread;
+    private volatile boolean isRunning;
+
+    private final boolean isVirtual;        // Time moves only in advance(), no callback thread
+    private volatile long virtualNanos;     // Virtual clock
+    private long nextCallbackNanos;         // Virtual time of the next portIsReady
+
+// --------------------------------- CLASS INIT AND CLOSE ---------------------------------------
+
+    public SimulatedI2cDevice(int latencyMicros, int jitterMicros, int periodMicros, long seed) {
+        this(latencyMicros, jitterMicros, periodMicros, seed, false);
+    }
+
+    public SimulatedI2cDevice(int latencyMicros, int jitterMicros, int periodMicros, long seed,
+                              boolean isVirtual) {
+        this.isVirtual = isVirtual;
+        random = new Random(seed);
+        setTiming(latencyMicros, jitterMicros, periodMicros);
+        readCache[Wire.REG_COUNT] = -1;         // Nothing to read yet
+    }
+
+    public void setTiming(int latencyMicros, int jitterMicros, int periodMicros) {
+        latencyNanos = latencyMicros * 1000L;
+        jitterNanos = jitterMicros * 1000L;
+        periodNanos = Math.max(periodMicros, 1) * 1000L;
+    }
+
+    //------------------------------------------------- Virtual clock --------------------------
+
+    public void advance(int micros) {
+        // Virtual clock only: move time on, calling portIsReady at every period boundary passed
+        if (!isVirtual) throw new IllegalStateException("SimulatedI2cDevice runs on the wall clock");
+        long end = virtualNanos + micros * 1000L;
+        while (nextCallbackNanos <= end) {
+            virtualNanos = nextCallbackNanos;
+            nextCallbackNanos += periodNanos;
+            I2cController.I2cPortReadyCallback current = callback;
+            if (current != null) {
+                callbackCount++;
+                current.portIsReady(getPort());
+            }
+        }
+        virtualNanos = end;
+    }
+
+    public long nowMicros() {
+        return nanoTime() / 1000L;          // Virtual time, or the wall clock
+    }
+
+    private long nanoTime() {
+        return isVirtual ? virtualNanos : System.nanoTime();
+    }
+
+    public int transactionCount() {
+        return transactionCount;
+    }
+
+    public void setRegister(int regNumber, int value) {
+        synchronized (registers) {
+            registers[regNumber & 0xff] = (byte) value;
+        }
+    }
+
+    public int getRegister(int regNumber) {
+        synchronized (registers) {
+            return registers[regNumber & 0xff] & 0xff;
+        }
+    }
+
+    //------------------------------------------------- Sensor model hooks ---------------------
+
+    protected int onRead(int regNumber, int value) {
+        return value;                           // Value handed to the reader
+    }
+
+    protected int onWrite(int regNumber, int value) {
+        return value;                           // Value stored in the register
+    }
+
+    protected long transactionNanos(byte[] request) {
+        // Bus time of the transaction that was just written, request is a copy of the cache
+        long jitter = jitterNanos > 0 ? (long) (random.nextDouble() * jitterNanos) : 0L;
+        return latencyNanos + jitter;
+    }
+
+    //------------------------------------------------- Transactions ---------------------------
+
+    @Override
+    public void writeI2cCacheToController() {
+        long now = nanoTime();
+        try {
+            writeLock.lock();
+            synchronized (pending) {
+                transactionCount++;
+                System.arraycopy(writeCache, 0, pending, 0, Wire.CACHE_SIZE);
+                completeNanos = now + transactionNanos(pending);
+                isPending = true;
+            }
+        } finally {
+            writeLock.unlock();
+        }
+    }
+
+    @Override
+    public void readI2cCacheFromController() {
+        synchronized (pending) {
+            if (!isPending || nanoTime() < completeNanos) return;
+            isPending = false;
+            execute();
+        }
+    }
+
+    private void execute() {
+        // pending is locked, move the finished transaction into the read cache
+        int regNumber = pending[Wire.REG_NUMBER] & 0xff;
+        int count = Math.min(pending[Wire.REG_COUNT], Wire.LAST_INDEX - Wire.DATA_OFFSET + 1);
+        boolean isRead = (pending[Wire.CACHE_MODE] == Wire.READ_MODE);
+        try {
+            readLock.lock();
+            for (int i = 0; i < Wire.DATA_OFFSET; i++) readCache[i] = pending[i];
+            synchronized (registers) {
+                for (int i = 0; i < count; i++) {          // Negative count does nothing
+                    int reg = (regNumber + i) & 0xff;
+                    if (isRead) {
+                        readCache[Wire.DATA_OFFSET + i] = (byte) onRead(reg, registers[reg] & 0xff);
+                    } else {
+                        int value = pending[Wire.DATA_OFFSET + i] & 0xff;
+                        registers[reg] = (byte) onWrite(reg, value);
+                        readCache[Wire.DATA_OFFSET + i] = (byte) value;
+                    }
+                }
+            }
+            timeWindow.setNanosecondsLast(nanoTime());
+        } finally {
+            readLock.unlock();
+        }
+    }
+
+    //------------------------------------------------- Callback thread ------------------------
+
+    @Override
+    public synchronized void registerForI2cPortReadyCallback(I2cController.I2cPortReadyCallback callback) {
+        this.callback = callback;
+        if (isVirtual || callbackThread != null) return;   // Called back from advance()
+        isRunning = true;
+        callbackThread = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                long next = System.nanoTime();
+                while (isRunning) {
+                    I2cController.I2cPortReadyCallback current = SimulatedI2cDevice.this.callback;
+                    if (current != null) {
+                        callbackCount++;
+                        current.portIsReady(getPort());
+                    }
+                    next += periodNanos;
+                    long sleep = next - System.nanoTime();
+                    if (sleep > 0) {
+                        try {
+                            Thread.sleep(sleep / 1000000L, (int) (sleep % 1000000L));
+                        } catch (InterruptedException e) {
+                            return;
+                        }
+                    }
+                }
+            }
+        }, "SimulatedI2cDevice");
+        callbackThread.setDaemon(true);
+        callbackThread.start();
+    }
+
+    @Override
+    public I2cController.I2cPortReadyCallback getI2cPortReadyCallback() {
+        return callback;
+    }
+
+    @Override
+    public void deregisterForPortReadyCallback() {
+        callback = null;
+    }
+
+    @Override
+    public int getCallbackCount() {
+        return callbackCount;
+    }
+
+    @Override
+    public synchronized void close() {
+        isRunning = false;
+        callback = null;
+        if (callbackThread != null) {
+            callbackThread.interrupt();
+            callbackThread = null;
+        }
+    }
+
+    //------------------------------------------------- Caches and locks -----------------------
+
+    @Override
+    public byte[] getI2cReadCache() {
+        return readCache;
+    }
+
+    @Override
+    public TimeWindow getI2cReadCacheTimeWindow() {
+        return timeWindow;
+    }
+
+    @Override
+    public Lock getI2cReadCacheLock() {
+        return readLock;
+    }
+
+    @Override
+    public byte[] getI2cWriteCache() {
+        return writeCache;
+    }
+
+    @Override
+    public Lock getI2cWriteCacheLock() {
+        return writeLock;
+    }
+
+    @Override
+    public byte[] getCopyOfReadBuffer() {
+        try {
+            readLock.lock();
+            return readCache.clone();
+        } finally {
+            readLock.unlock();
+        }
+    }
+
+    @Override
+    public byte[] getCopyOfWriteBuffer() {
+        try {
+            writeLock.lock();
+            return writeCache.clone();
+        } finally {
+            writeLock.unlock();
+        }
+    }
+
+    @Override
+    public void copyBufferIntoWriteBuffer(byte[] buffer) {
+        try {
+            writeLock.lock();
+            System.arraycopy(buffer, 0, writeCache, Wire.DATA_OFFSET,
+                    Math.min(buffer.length, Wire.CACHE_SIZE - Wire.DATA_OFFSET));
+        } finally {
+            writeLock.unlock();
+        }
+    }
+
+    //------------------------------------------------- Port mode ------------------------------
+
+    @Override
+    public void enableI2cReadMode(I2cAddr i2cAddr, int register, int count) {
+        setHeader(Wire.READ_MODE, i2cAddr, register, count);
+    }
+
+    @Override
+    public void enableI2cWriteMode(I2cAddr i2cAddr, int register, int count) {
+        setHeader(Wire.WRITE_MODE, i2cAddr, register, count);
+    }
+
+    private void setHeader(byte mode, I2cAddr i2cAddr, int register, int count) {
+        try {
+            writeLock.lock();
+            writeCache[Wire.CACHE_MODE] = mode;
+            writeCache[Wire.DEV_ADDR] = (byte) i2cAddr.get8Bit();
+            writeCache[Wire.REG_NUMBER] = (byte) register;
+            writeCache[Wire.REG_COUNT] = (byte) count;
+        } finally {
+            writeLock.unlock();
+        }
+    }
+
+    @Override
+    public boolean isI2cPortInReadMode() {
+        return writeCache[Wire.CACHE_MODE] == Wire.READ_MODE;
+    }
+
+    @Override
+    public boolean isI2cPortInWriteMode() {
+        return writeCache[Wire.CACHE_MODE] == Wire.WRITE_MODE;
+    }
+
+    @Override
+    public void writeI2cPortFlagOnlyToController() {
+        writeI2cCacheToController();
+    }
+
+    @Override
+    public void setI2cPortActionFlag() {
+        writeCache[Wire.ACTION_FLAG] = -1;
+    }
+
+    @Deprecated
+    @Override
+    public boolean isI2cPortActionFlagSet() {
+        return readCache[Wire.ACTION_FLAG] != 0;
+    }
+
+    @Override
+    public void clearI2cPortActionFlag() {
+        writeCache[Wire.ACTION_FLAG] = 0;
+    }
+
+    @Override
+    public int getMaxI2cWriteLatency() {
+        return (int) ((latencyNanos + jitterNanos) / 1000000L);
+    }
+
+    @Override
+    public boolean isI2cPortReady() {
+        synchronized (pending) {
+            return !isPending;
+        }
+    }
+
+    @Override
+    public void registerForPortReadyBeginEndCallback(I2cController.I2cPortReadyBeginEndNotifications callback) {
+        beginEndCallback = callback;
+    }
+
+    @Override
+    public I2cController.I2cPortReadyBeginEndNotifications getPortReadyBeginEndCallback() {
+        return beginEndCallback;
+    }
+
+    @Override
+    public void deregisterForPortReadyBeginEndCallback() {
+        beginEndCallback = null;
+    }
+
+    @Override
+    public boolean isArmed() {
+        return true;
+    }
+
+    //------------------------------------------------- HardwareDevice -------------------------
+
+    @Deprecated
+    @Override
+    public I2cController getController() {
+        return null;
+    }
+
+    @Override
+    public I2cController getI2cController() {
+        return null;
+    }
+
+    @Override
+    public int getPort() {
+        return 0;
+    }
+
+    @Deprecated
+    @Override
+    public void readI2cCacheFromModule() {
+        readI2cCacheFromController();
+    }
+
+    @Deprecated
+    @Override
+    public void writeI2cCacheToModule() {
+        writeI2cCacheToController();
+    }
+
+    @Deprecated
+    @Override
+    public void writeI2cPortFlagOnlyToModule() {
+        writeI2cPortFlagOnlyToController();
+    }
+
+    @Override
+    public Manufacturer getManufacturer() {
+        return Manufacturer.Other;
+    }
+
+    @Override
+    public String getDeviceName() {
+        return "Simulated I2C Device";
+    }
+
+    @Override
+    public String getConnectionInfo() {
+        return "simulated";
+    }
+
+    @Override
+    public int getVersion() {
+        return 1;
+    }
+
+    @Override
+    public void resetDeviceConfigurationForOpMode() {
+    }
+}
@@ -0,0 +1,104 @@
+package com.techietitans.libraries;
+
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Fixed size, wait-free queue for exactly one producer thread and one consumer thread.
+ * Companion of ArrayQueue for hand-off between the OpMode loop and the I2C port callback.
+ * <p/>
+ * The producer publishes a slot with an ordered store of tail after filling it, the consumer
+ * releases a slot with an ordered store of head after emptying it. Neither side ever blocks
+ * or allocates. The producer (or consumer) role may move to another thread only when the
+ * move itself is a happens-before edge, e.g. a compareAndSet on a shared flag.
+ */
+public class SpscQueue<AnyType> {
+    private final AnyType[] queue;
+    private final int mask;
+    private final AtomicInteger head;   // Next slot to remove, written by consumer only
+    private final AtomicInteger tail;   // Next slot to fill, written by producer only
+    private int headCache;              // Producer's last view of head
+    private int tailCache;              // Consumer's last view of tail
+
+    @SuppressWarnings("unchecked")              // The array casting is OK
+    public SpscQueue(int size) {
+        int capacity = 1;
+        while (capacity < size) capacity <<= 1; // Round up to a power of two
+        queue = (AnyType[]) new Object[capacity];
+        mask = capacity - 1;
+        head = new AtomicInteger();
+        tail = new AtomicInteger();
+    }
+
+    public int capacity() {
+        return queue.length;
+    }
+
+    // --------------------------------- Producer side -----------------------------------------
+
+    public boolean offer(AnyType element) {
+        int t = tail.get();
+        if (t - headCache >= queue.length) {
+            headCache = head.get();
+            if (t - headCache >= queue.length) return false;  // The queue is full
+        }
+        queue[t & mask] = element;
+        tail.lazySet(t + 1);                    // Publish the slot
+        return true;
+    }
+
+    public int offerAll(ArrayQueue<AnyType> from) {
+        return offerAll(from, queue.length);
+    }
+
+    public int offerAll(ArrayQueue<AnyType> from, int limit) {
+        // Move elements until the queue holds limit of them, the consumer sees all at once
+        int t = tail.get();
+        int start = t;
+        int most = Math.min(limit, queue.length);
+        while (!from.isEmpty()) {
+            if (t - headCache >= most) {
+                headCache = head.get();
+                if (t - headCache >= most) break;
+            }
+            queue[t & mask] = from.remove();
+            t++;
+        }
+        tail.lazySet(t);                        // Publish the batch
+        return t - start;
+    }
+
+    // --------------------------------- Consumer side -----------------------------------------
+
+    public AnyType poll() {
+        int h = head.get();
+        if (h == tailCache) {
+            tailCache = tail.get();
+            if (h == tailCache) return null;    // The queue is empty
+        }
+        AnyType element = queue[h & mask];
+        queue[h & mask] = null;                 // Enable garbage collection
+        head.lazySet(h + 1);                    // Release the slot
+        return element;
+    }
+
+    public AnyType peek() {
+        int h = head.get();
+        if (h == tailCache) {
+            tailCache = tail.get();
+            if (h == tailCache) return null;
+        }
+        return queue[h & mask];
+    }
+
+    // --------------------------------- Any thread --------------------------------------------
+
+    public boolean isEmpty() {
+        return head.get() == tail.get();
+    }
+
+    public int length() {
+        int h = head.get();
+        int length = tail.get() - h;
+        return Math.max(0, Math.min(length, queue.length));
+    }
+}
@@ -7,7 +7,11 @@ import com.qualcomm.robotcore.hardware.I2cController;
 import com.qualcomm.robotcore.hardware.I2cDevice;
 import com.techietitans.libraries.ArrayQueue;
 
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicIntegerArray;
 import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.ReentrantLock;
 
 /**
  * Created by ruhul on 12/31/15.
@@ -25,6 +29,41 @@ import java.util.concurrent.locks.Lock;
  * 2) in executeCommands added missing line to stop idle polling
  * 3) added method requestCount(), to complement the existing responseCount()
  * 4) added method write() with second parameter as object (for no value)
+ * 5) queue elements are taken from preallocated pools and recycled, no garbage per transaction
+ * 6) queues between loop and callback thread are lock-free SpscQueues, device locks are held
+ *    only while rCache/wCache are touched
+ * 7) optional read coalescing: queued reads of adjacent or overlapping registers are sent as
+ *    one burst, each requester still gets its own response
+ * 8) optional write combining: single register writes wait in a table while the bus is busy,
+ *    the last value wins and they go out in the order they were last written; registers
+ *    written one after the other in ascending order are sent as one multi-byte write. The
+ *    bus owner takes them from the table once the queues have drained, close() sends them.
+ * 9) requests are time stamped at enqueue, dispatch and completion, see getStats()
+ * 10) polling for a reply follows a policy: every callback, fixed interval, or a backoff that
+ *    starts from the round trip time seen for the register
+ * 11) requestFrom() with a WireListener: the response is handed to the listener by
+ *    processResponses(), several reads can be outstanding without demultiplexing by hand
+ * 12) constructor taking the I2cDevice itself, to run on a SimulatedI2cDevice off-robot
+ * 13) setRecorder() captures dispatched requests and replies in binary, see WireReplayer
+ * 14) requests belong to a priority class, served strictly by priority except that a class
+ *    passed over too often is served next. Order is kept only within a class.
+ * 15) request and response queues are bounded, a full queue rejects, drops its oldest held
+ *    element or coalesces with a matching one. Under DROP_OLDEST and COALESCE only half the
+ *    limit is handed to the other thread, the rest is held where the policy can act on it.
+ *    isSaturated() tells callers to back off before requests overflow.
+ * 16) several Wires can share one I2cDevice through a WirePort, which owns the callback and
+ *    takes turns between them. The Wires of a port share one idle flag.
+ * 17) RegisterShadow keeps the last value of each register, readCached() answers from it when
+ *    the value is recent enough for the caller
+ * 18) optional read deduplication: a read identical to one still on the bus or waiting for it
+ *    is attached to it, every requester gets its own copy of the one response. A read stops
+ *    taking others when its transaction completes or a write to its registers is issued.
+ * 19) requestAt() holds a read in its class queue until a given time; an idle bus with only
+ *    such reads waiting is picked up again by the port callback
+ * <p/>
+ * Threading: the OpMode thread produces requests and consumes responses, the port callback
+ * thread produces responses. Whoever moves the bus out of idle (the idle flag compareAndSet)
+ * owns the down stream consumer side until the bus goes idle again.
  */
 
 
@@ -47,31 +86,193 @@ public class Wire implements I2cController.I2cPortReadyCallback {
             ACTION_FLAG = 31,           // 0 = idle, -1 = transfer is active
             CACHE_SIZE = 32;           // dCache fixed size
 
+    // Transaction pool size
+    static final int
+            POOL_SIZE = 16;            // Preallocated elements per queue
+
+    // Read coalescing limits
+    static final int
+            MAX_BURST = LAST_INDEX - DATA_OFFSET;  // Largest merged read, also max parts
+
+    // Polling policy for outstanding replies
+    public enum Polling {
+        IMMEDIATE,                      // Poll on every callback
+        FIXED,                          // Poll every interval
+        BACKOFF                         // First poll near the expected round trip, then doubling
+    }
+
+    // Priority classes of requests, most urgent first
+    public enum Priority {
+        CRITICAL,                       // Control loop sensor reads
+        PERIODIC,                       // Regular polling, the default
+        BACKGROUND                      // Configuration and other low value traffic
+    }
+
+    static final int
+            CLASSES = 3,                    // Number of priority classes
+            STARVATION_LIMIT = 4;           // Default times a waiting class may be passed over
+
+    // What a full queue does with one more element
+    public enum Overflow {
+        REJECT,                         // The new element is not queued
+        DROP_OLDEST,                    // The oldest element not yet handed over is discarded
+        COALESCE                        // A held element for the same registers takes the new data
+    }
+
+    static final int
+            CLOSE_MILLIS = 100;             // Longest close() waits for queued requests to go out
+
+    // Read deduplication limits
+    static final int
+            MAX_OPEN = 32,                  // Outstanding reads that others can attach to
+            MAX_WAITERS = 32;               // Requests attached to outstanding reads
+
+    // State of an open read slot, written by the thread that completes or loses its read
+    private static final int
+            SLOT_OPEN = 0,                  // Not completed, others can attach
+            SLOT_DONE = 1,                  // Completed, the response is on its way
+            SLOT_LOST = 2;                  // The element was dropped by an overflow policy
+
+    static final int
+            REQUEST_LIMIT = 32,             // Default requests waiting per priority class
+            RESPONSE_LIMIT = 32;            // Default responses waiting for the OpMode
+
+    // Results of adding to a bounded queue
+    private static final int
+            ACCEPTED = 0,
+            MERGED = 1,
+            DROPPED = 2,
+            REJECTED = 3;
+
     // --------------------------------- CLASS VARIABLES -------------------------------------------
-    private ArrayQueue<Element> downQueue;  // Down stream buffer
-    private ArrayQueue<Element> upQueue;    // Up stream buffer
+    private SpscQueue<Element>[] downQueue; // Down stream buffers, one per priority class
+    private SpscQueue<Element> upQueue;     // Up stream buffer
+    private SpscQueue<Element> downPool;    // Free elements returned by the bus owner
+    private SpscQueue<Element> upPool;      // Free elements returned by the OpMode thread
+    private ArrayQueue<Element>[] downBacklog; // OpMode side requests held or not fitting
+    private ArrayQueue<Element> upBacklog;  // Callback side overflow of a full upQueue
+    private AtomicInteger allocations;      // Elements allocated after the initial pools
     private I2cDevice wireDev;              // Generic I2C Device Object
+    private WirePort port;                  // Shared port scheduler, null when the port is ours
     private byte wireDevAddr;               // Generic Device Address
     private byte[] rCache;                  // Read Cache
     private byte[] wCache;                  // Write Cache
     private Lock rLock;                     // Lock for Read Cache
-    private Lock wLock;                     // Lock for Write Cache & request queue
+    private Lock wLock;                     // Lock for Write Cache
 
     private byte[] dCache;                  // Buffer for down stream details
+    private WireListener dListener;         // Listener of the request in dCache
+    private int dSlot;                      // Open read slot of the request in dCache, 0 none
+    private long dNotBefore;                // Earliest dispatch of the request in dCache, 0 now
     private int dNext;                      // Next location for incoming bytes
     private byte[] uCache;                  // Buffer for up stream response
     private int uNext;                      // Next location for response bytes
     private int uLimit;                     // Last location for response bytes
     private long uMicros;                   // Time stamp, microseconds since start
     private long startTime;                 // Start time in nanoseconds
-    private boolean isIdle;                 // Mechanism to control polling
+    private AtomicBoolean idle;             // Mechanism to control polling, bus ownership
+
+    private int priority;                   // Class of the requests being made
+    private int pendingPriority;            // Most urgent class among the held writes
+    private int[] passedOver;               // Dispatches a waiting class did not get
+    private volatile int starvationLimit;   // Passes before a waiting class is served
+    private int dispatchClass;              // Class of the transaction in flight
+    private boolean hasLater;               // Bus owner saw requests that are not due yet
+    private boolean isDispatched;           // A transaction went out since the bus was idle
+
+    private volatile boolean isCoalescing;  // Merge adjacent queued reads into one burst
+    private int[] partRegister;             // Registers of the reads merged into the burst
+    private int[] partCount;                // Counts of the reads merged into the burst
+    private WireListener[] partListener;    // Listeners of the reads merged into the burst
+    private int[] partSlot;                 // Open read slots of the reads merged into the burst
+    private WireListener burstListener;     // Listener of the transaction in flight
+    private int burstSlot;                  // Open read slot of the transaction in flight
+    private volatile int burstParts;        // Parts in flight, 0 when not a merged burst
+    private byte[] sCache;                  // Buffer for splitting a burst reply
+    private volatile int coalescedReads;    // Reads that did not need their own transaction
+
+    private boolean isCombining;            // Hold single register writes in a table
+    private Lock pendingLock;               // Lock for the table, OpMode thread and bus owner
+    private byte[] pendingValue;            // Last value written to each register
+    private boolean[] isPending;            // Register has a value waiting in the table
+    private int[] pendingOrder;             // Waiting registers, in the order last written
+    private volatile int pendingWrites;     // Registers waiting in the table
+    private byte[] cCache;                  // Buffer for building combined writes
+    private Element taken;                  // Bus owner: run of held writes it took itself
+    private volatile int combinedWrites;    // Writes replaced or packed, no transaction of their own
+
+    private WireResponse response;          // View handed to listeners
+    private WireStats stats;                // Live counters and latency histograms
+    private long enqueueMicros;             // Enqueue time of the transaction in flight
+    private volatile long dispatchMicros;   // Dispatch time of the transaction in flight
+
+    private volatile Polling polling;       // Polling policy
+    private volatile int pollInterval;      // Fixed interval, also the smallest backoff step (us)
+    private volatile int pollMax;           // Largest backoff step (us)
+    private int[] roundTrip;                // Average bus time per register (us)
+    private long polledDispatch;            // Dispatch time of the transaction being polled
+    private long nextPoll;                  // Earliest time of the next poll
+    private int pollDelay;                  // Current backoff step
+
+    private volatile WireRecorder recorder; // Binary capture of the traffic, null when off
+    private WireRecorder replyRecorder;     // Recorder of the reply in yCache, null when none
+    private byte[] yCache;                  // Reply kept for the recorder until rLock is released
+    private long replyMicros;               // Time stamp of the reply in yCache
+
+    private int requestLimit;               // Requests waiting per class, OpMode thread only
+    private int requestHandover;            // Requests per class handed to the bus owner
+    private Overflow requestOverflow;       // Policy of a full request queue
+    private int requestOverflows;           // Requests rejected, dropped or merged
+    private volatile int downHeld;          // Length of the downBacklogs as last seen by the OpMode
+    private volatile int responseLimit;     // Responses waiting, read by the callback thread
+    private volatile int responseHandover;  // Responses handed to the OpMode thread
+    private volatile Overflow responseOverflow; // Policy of a full response queue
+    private volatile int responseOverflows; // Responses dropped or merged, callback thread only
+    private volatile int upHeld;            // Length of upBacklog as last seen by the callback
+
+    private RegisterShadow shadow;          // Last known register values, in bus order
+    private byte[] hCache;                  // Buffer for responses served from the shadow
+
+    private boolean isDeduplicating;        // Attach identical reads to the outstanding one
+    private int[] openKey;                  // Key of the read in each slot, slot 0 is unused
+    private boolean[] isSlotUsed;           // Slot has a read whose response was not taken yet
+    private boolean[] isSlotClosed;         // A write to the registers was issued after the read
+    private AtomicIntegerArray slotState;   // SLOT_OPEN, SLOT_DONE or SLOT_LOST
+    private int[] waiterSlot;               // Slot of the read each waiter is attached to
+    private WireListener[] waiterListener;  // Listener of each waiter, null to poll for it
+    private int waiters;
+    private ArrayQueue<Element> replay;     // Copies for waiters, ahead of the upQueue
+    private ArrayQueue<Element> replayPool; // Free elements for copies
+    private int dedupedReads;               // Reads that did not need their own transaction
 
 // --------------------------------- CLASS INIT AND CLOSE ---------------------------------------
 
     public Wire(HardwareMap hardwareMap, String deviceName, int devAddr) {
-        downQueue = new ArrayQueue<Element>();
-        upQueue = new ArrayQueue<Element>();
-        wireDev = hardwareMap.i2cDevice.get(deviceName);
+        this(hardwareMap.i2cDevice.get(deviceName), devAddr);
+    }
+
+    public Wire(I2cDevice device, int devAddr) {        // e.g. a SimulatedI2cDevice
+        this(device, null, devAddr, -1);
+    }
+
+    public Wire(WirePort port, int devAddr) {
+        this(port, devAddr, -1);
+    }
+
+    public Wire(WirePort port, int devAddr, int muxChannel) {  // Behind the port's mux
+        this(port.getDevice(), port, devAddr, muxChannel);
+    }
+
+    private Wire(I2cDevice device, WirePort port, int devAddr, int muxChannel) {
+        downQueue = newQueues();
+        upQueue = new SpscQueue<Element>(POOL_SIZE);
+        downPool = newPool();
+        upPool = newPool();
+        downBacklog = newBacklogs();
+        upBacklog = new ArrayQueue<Element>(RESPONSE_LIMIT + 1);
+        allocations = new AtomicInteger();
+        wireDev = device;
+        this.port = port;
         wireDevAddr = (byte) devAddr;
 
         rCache = wireDev.getI2cReadCache();
@@ -86,16 +287,114 @@ public class Wire implements I2cController.I2cPortReadyCallback {
         startTime = System.nanoTime();
         uNext = DATA_OFFSET;
         uLimit = uNext;
-        isIdle = true;
+        idle = (port == null) ? new AtomicBoolean(true) : port.idle;
+
+        priority = Priority.PERIODIC.ordinal();
+        pendingPriority = CLASSES - 1;
+        passedOver = new int[CLASSES];
+        starvationLimit = STARVATION_LIMIT;
+        dispatchClass = priority;
+
+        isCoalescing = false;
+        partRegister = new int[MAX_BURST];
+        partCount = new int[MAX_BURST];
+        partListener = new WireListener[MAX_BURST];
+        partSlot = new int[MAX_BURST];
+        burstListener = null;
+        burstSlot = 0;
+        burstParts = 0;
+        sCache = new byte[CACHE_SIZE];
+        coalescedReads = 0;
+
+        isCombining = false;
+        pendingLock = new ReentrantLock();
+        pendingValue = new byte[256];
+        isPending = new boolean[256];
+        pendingOrder = new int[256];
+        pendingWrites = 0;
+        cCache = new byte[CACHE_SIZE];
+        taken = new Element();
+        combinedWrites = 0;
+
+        response = new WireResponse();
+        stats = new WireStats();
+        enqueueMicros = 0L;
+        dispatchMicros = 0L;
+
+        polling = Polling.IMMEDIATE;
+        pollInterval = 1000;
+        pollMax = 8000;
+        roundTrip = new int[256];
+        polledDispatch = -1L;
+        nextPoll = 0L;
+        pollDelay = 0;
+
+        requestLimit = REQUEST_LIMIT;
+        requestOverflow = Overflow.REJECT;
+        requestHandover = handover(requestLimit, requestOverflow);
+        requestOverflows = 0;
+        downHeld = 0;
+        responseLimit = RESPONSE_LIMIT;
+        responseOverflow = Overflow.DROP_OLDEST;
+        responseHandover = handover(responseLimit, responseOverflow);
+        responseOverflows = 0;
+        upHeld = 0;
 
-        wireDev.registerForI2cPortReadyCallback(this);
+        replyRecorder = null;
+        yCache = new byte[CACHE_SIZE];
+        replyMicros = 0L;
+
+        shadow = new RegisterShadow();
+        hCache = new byte[CACHE_SIZE];
+
+        isDeduplicating = false;
+        openKey = new int[MAX_OPEN + 1];
+        isSlotUsed = new boolean[MAX_OPEN + 1];
+        isSlotClosed = new boolean[MAX_OPEN + 1];
+        slotState = new AtomicIntegerArray(MAX_OPEN + 1);
+        waiterSlot = new int[MAX_WAITERS];
+        waiterListener = new WireListener[MAX_WAITERS];
+        waiters = 0;
+        replay = new ArrayQueue<Element>(MAX_WAITERS + 1);
+        replayPool = new ArrayQueue<Element>(MAX_WAITERS + 1);
+        for (int i = 0; i < MAX_WAITERS; i++) replayPool.add(new Element());
+        dedupedReads = 0;
+
+        if (port == null) {
+            wireDev.registerForI2cPortReadyCallback(this);
+        } else {
+            port.attach(this, muxChannel);
+        }
     }
 
     public void close() {
-        wireDev.deregisterForPortReadyCallback();
-        downQueue.close();
-        upQueue.close();
-        wireDev.close();
+        // Requests already made go out first, held writes included, as far as they can in
+        // CLOSE_MILLIS
+        flushWrites();
+        startRequests();
+        long deadline = System.nanoTime() + CLOSE_MILLIS * 1000000L;
+        while ((downLength() > 0 || (port == null && !idle.get())) && System.nanoTime() < deadline) {
+            try {
+                Thread.sleep(1);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                break;
+            }
+            startRequests();
+        }
+        if (port != null) {
+            port.detach(this);              // The port keeps the device open for the others
+        } else {
+            wireDev.deregisterForPortReadyCallback();
+        }
+        for (int c = 0; c < CLASSES; c++) {
+            while (downQueue[c].poll() != null) ;   // Discard all elements
+            downBacklog[c].close();
+        }
+        while (upQueue.poll() != null) ;
+        upBacklog.close();
+        replay.close();
+        if (port == null) wireDev.close();
     }
 
     //------------------------------------------------- Public Methods -------------------------
@@ -138,54 +437,268 @@ public class Wire implements I2cController.I2cPortReadyCallback {
         }
     }
 
-    public void endWrite() {
+    public boolean endWrite() {
         dCache[REG_COUNT] = (byte) (dNext - DATA_OFFSET);
-        addRequest();
+        closeReads(dCache[REG_NUMBER] & 0xff, dCache[REG_COUNT]);  // Later reads see the write
+        if (isCombining && dCache[REG_COUNT] == 1) {
+            int regNumber = dCache[REG_NUMBER] & 0xff;
+            try {
+                pendingLock.lock();
+                if (isPending[regNumber]) {
+                    combinedWrites++;       // Stale value is never sent
+                    removePending(regNumber);   // Goes out after the writes made since
+                }
+                isPending[regNumber] = true;
+                pendingValue[regNumber] = dCache[DATA_OFFSET];
+                pendingPriority = Math.min(pendingPriority, priority);
+                pendingOrder[pendingWrites] = regNumber;
+                pendingWrites++;            // Published last, see hasQueued()
+            } finally {
+                pendingLock.unlock();
+            }
+            startRequests();
+            return true;                    // The table never overflows
+        }
+        return addRequest();
     }
 
-    public void requestFrom(int regNumber, int regCount) {
+    public boolean requestFrom(int regNumber, int regCount) {
+        return requestFrom(regNumber, regCount, null);
+    }
+
+    public boolean requestFrom(int regNumber, int regCount, WireListener listener) {
         dCache[CACHE_MODE] = READ_MODE;
         dCache[DEV_ADDR] = wireDevAddr;
         dCache[REG_NUMBER] = (byte) regNumber;
         dCache[REG_COUNT] = (byte) regCount;
-        addRequest();
+        int key = readKey(regNumber, regCount);
+        boolean isDeduped = isDeduplicating && dNotBefore == 0L;
+        int slot = isDeduped ? openSlot(key) : 0;
+        if (slot > 0 && waiters < MAX_WAITERS) {
+            waiterSlot[waiters] = slot;     // Served with the outstanding read's response
+            waiterListener[waiters++] = listener;
+            dedupedReads++;
+            return true;
+        }
+        dListener = listener;
+        dSlot = isDeduped ? newSlot(key) : 0;
+        boolean isQueued = addRequest();
+        if (!isQueued && dSlot > 0) isSlotUsed[dSlot] = false;     // Never queued
+        dListener = null;
+        dSlot = 0;
+        return isQueued;                    // False when rejected by a full queue
     }
 
-    public int responseCount() {
-        int count = 0;
-        try {
-            rLock.lock();
-            count = upQueue.length();
-        } finally {
-            rLock.unlock();
+    public boolean requestAt(long micros, int regNumber, int regCount, WireListener listener) {
+        // Not sent before micros, see nowMicros(). Holds back the requests behind it in its class.
+        dNotBefore = Math.max(micros, 1L);
+        boolean isQueued = requestFrom(regNumber, regCount, listener);
+        dNotBefore = 0L;
+        return isQueued;
+    }
+
+    public long nowMicros() {
+        return elapsedMicros();             // The time base of requestAt() and micros()
+    }
+
+    public boolean readCached(int regNumber, int regCount, int maxAgeMicros) {
+        // Loads the response from the shadow when fresh enough, else requests it and returns false
+        uNext = DATA_OFFSET;
+        uLimit = uNext;
+        long seen = loadShadow(regNumber, regCount, maxAgeMicros, uCache);
+        if (seen < 0) {
+            requestFrom(regNumber, regCount);
+            return false;
         }
-        return count;
+        uMicros = seen;                     // Time of the oldest register
+        uLimit = uNext + regCount;
+        return true;
     }
 
-    public int requestCount() {
+    public boolean readCached(int regNumber, int regCount, int maxAgeMicros, WireListener listener) {
+        // True when the listener was called right away from the shadow
+        long seen = loadShadow(regNumber, regCount, maxAgeMicros, hCache);
+        if (seen < 0) {
+            requestFrom(regNumber, regCount, listener);
+            return false;
+        }
+        response.wrap(hCache, seen);
+        listener.onResponse(response);
+        return true;
+    }
+
+    private long loadShadow(int regNumber, int regCount, int maxAgeMicros, byte[] cache) {
+        if (regCount < 1 || regCount > MAX_BURST) return -1L;
+        long seen = shadow.load(regNumber, regCount, maxAgeMicros, elapsedMicros(), cache);
+        if (seen < 0) return -1L;
+        cache[CACHE_MODE] = READ_MODE;
+        cache[DEV_ADDR] = wireDevAddr;
+        cache[REG_NUMBER] = (byte) regNumber;
+        cache[REG_COUNT] = (byte) regCount;
+        return seen;
+    }
+
+    public RegisterShadow getShadow() {
+        return shadow;
+    }
+
+    public int processResponses() {
+        // Hand responses with a listener to their listener, stop at the first one without
         int count = 0;
-        try {
-            wLock.lock();
-            count = downQueue.length();
-        } finally {
-            wLock.unlock();
+        startRequests();
+        Element element;
+        while ((element = replay.peek()) != null && element.listener != null) {
+            deliver(replay.remove(), replayPool);
+            count++;
+        }
+        if (!replay.isEmpty()) return count;        // A copy waits to be polled
+        while ((element = upQueue.peek()) != null && element.listener != null) {
+            deliver(upQueue.poll(), null);
+            count++;
+            while ((element = replay.peek()) != null && element.listener != null) {
+                deliver(replay.remove(), replayPool);
+                count++;
+            }
+            if (!replay.isEmpty()) break;
         }
         return count;
     }
 
+    public void setReadDeduplication(boolean enabled) {
+        isDeduplicating = enabled;
+    }
+
+    public int dedupedCount() {
+        return dedupedReads;
+    }
+
+    public void setReadCoalescing(boolean enabled) {
+        // When enabled, requests are held until responseCount(), requestCount(), getResponse()
+        // or flush(), so that reads issued in one loop can be merged
+        isCoalescing = enabled;
+        if (!enabled) flush();
+    }
+
+    public void flush() {
+        startRequests();
+    }
+
+    public int coalescedCount() {
+        return coalescedReads;
+    }
+
+    public void setWriteCombining(boolean enabled) {
+        // Only for devices that auto-increment the register on multi-byte writes
+        isCombining = enabled;
+        if (!enabled) {
+            flushWrites();
+            flush();
+        }
+    }
+
+    public int combinedCount() {
+        return combinedWrites;
+    }
+
+    public void setPolling(Polling policy, int intervalMicros, int maxMicros) {
+        pollInterval = Math.max(intervalMicros, 0);
+        pollMax = Math.max(maxMicros, pollInterval);
+        polling = policy;
+    }
+
+    public void setPriority(Priority priority) {
+        this.priority = priority.ordinal(); // Applies to the requests that follow
+    }
+
+    public void setStarvationLimit(int limit) {
+        starvationLimit = Math.max(limit, 1);
+    }
+
+    public void setRequestLimit(int limit, Overflow policy) {
+        // Per priority class. DROP_OLDEST and COALESCE act on held requests, so they need a
+        // limit of at least 2 and hand at most half of it to the bus owner.
+        checkLimit(limit, policy);
+        requestLimit = limit;
+        requestOverflow = policy;
+        requestHandover = handover(limit, policy);
+    }
+
+    public void setResponseLimit(int limit, Overflow policy) {
+        // As setRequestLimit(), responses held by the callback reach the OpMode on the next one
+        checkLimit(limit, policy);
+        responseOverflow = policy;
+        responseHandover = handover(limit, policy);
+        responseLimit = limit;
+    }
+
+    private static void checkLimit(int limit, Overflow policy) {
+        int least = (policy == Overflow.REJECT) ? 1 : 2;
+        if (limit < least) {
+            throw new IllegalArgumentException("Limit " + limit + " is below " + least + " for " + policy);
+        }
+    }
+
+    private static int handover(int limit, Overflow policy) {
+        // Elements in the SpscQueue, out of reach of the policy
+        if (policy == Overflow.REJECT) return POOL_SIZE;
+        return Math.max(1, Math.min(limit / 2, POOL_SIZE));
+    }
+
+    public boolean isSaturated() {
+        // Requests of the current class fill half their limit, so the caller can back off
+        // before they overflow, or responses fill their limit
+        int requests = downQueue[priority].length() + downBacklog[priority].length();
+        return 2 * requests >= requestLimit || upQueue.length() + upHeld >= responseLimit;
+    }
+
+    public int requestOverflowCount() {
+        return requestOverflows;
+    }
+
+    public int responseOverflowCount() {
+        return responseOverflows;
+    }
+
+    public void setRecorder(WireRecorder recorder) {
+        this.recorder = recorder;           // null stops recording, closing is up to the caller
+    }
+
+    public WireStats getStats(WireStats snapshot) {
+        stats.copyTo(snapshot, elapsedMicros());
+        return snapshot;
+    }
+
+    public int responseCount() {
+        processResponses();                 // Listener responses are not counted
+        return replay.length() + upQueue.length();
+    }
+
+    public int requestCount() {
+        startRequests();
+        return downLength();
+    }
+
     public boolean getResponse() {
         boolean responseReceived = false;
         uNext = DATA_OFFSET;
         uLimit = uNext;
-        try {
-            rLock.lock();                   // Explicit protection with rLock
-            if (!upQueue.isEmpty()) {
-                responseReceived = true;
-                uMicros = getFromQueue(uCache, upQueue);
-                uLimit = uNext + uCache[REG_COUNT];
-            }
-        } finally {
-            rLock.unlock();
+        processResponses();
+        Element element = replay.peek();
+        if (element != null) {              // Copy for a waiter, it has no listener here
+            responseReceived = true;
+            uMicros = element.timeStamp;
+            copyCache(element.cache, uCache);
+            replayPool.add(replay.remove());
+            uLimit = uNext + uCache[REG_COUNT];
+            return responseReceived;
+        }
+        element = upQueue.peek();
+        if (element != null && element.listener == null) {
+            responseReceived = true;
+            int slot = element.slot;
+            uMicros = getFromQueue(uCache, upQueue, upPool);
+            uLimit = uNext + uCache[REG_COUNT];
+            fanOut(slot, uCache, uMicros);
         }
         return responseReceived;
     }
@@ -231,13 +744,19 @@ public class Wire implements I2cController.I2cPortReadyCallback {
         return 256 * high + low;
     }
 
+    public int allocationCount() {
+        return allocations.get();           // Stays at 0 once the pools cover the traffic
+    }
+
 //------------------------------------------------- Main routine: Device CallBack -------------
 
     public void portIsReady(int port) {
         boolean isValidReply = false;
+        drainResponses();
         try {
             rLock.lock();
             if (
+                    !idle.get() &&                  // Only the owner's transaction replies
                     rCache[CACHE_MODE] == wCache[CACHE_MODE] &&
                             rCache[DEV_ADDR] == wCache[DEV_ADDR] &&
                             rCache[REG_NUMBER] == wCache[REG_NUMBER] &&
@@ -250,95 +769,625 @@ public class Wire implements I2cController.I2cPortReadyCallback {
             rLock.unlock();
         }
         if (isValidReply) {
+            recordReply();
             executeCommands();                              // Start next transmission
         } else {
             boolean isPollingRequired = false;
+            int regNumber = 0;
             try {
                 wLock.lock();                               // Protect the testing
                 isPollingRequired = (wCache[DEV_ADDR] == wireDevAddr);
+                regNumber = wCache[REG_NUMBER] & 0xff;
             } finally {
                 wLock.unlock();
             }
             if (isPollingRequired) {
-                wireDev.readI2cCacheFromController();       // Keep polling active
+                if (isPollDue(regNumber)) {
+                    stats.recordPoll();
+                    wireDev.readI2cCacheFromController();   // Keep polling active
+                } else {
+                    stats.recordSkippedPoll();
+                }
+            } else if (this.port == null && hasQueued() && idle.compareAndSet(true, false)) {
+                executeCommands();                  // A scheduled request may be due now
+            }
+        }
+    }
+
+    private boolean isPollDue(int regNumber) {
+        // Callback thread: decide whether this callback reads the cache again
+        Polling policy = polling;
+        if (policy == Polling.IMMEDIATE) return true;
+        long now = elapsedMicros();
+        long dispatched = dispatchMicros;
+        if (dispatched != polledDispatch) {         // New transaction, seed the schedule
+            polledDispatch = dispatched;
+            int seed = pollInterval;
+            if (policy == Polling.BACKOFF) {
+                int expected = roundTrip[regNumber] * 3 / 4;
+                seed = Math.max(Math.min(expected, pollMax), pollInterval);
             }
+            pollDelay = pollInterval;
+            nextPoll = dispatched + seed;
         }
+        if (now < nextPoll) return false;
+        if (policy == Polling.BACKOFF) {
+            pollDelay = Math.min(Math.max(2 * pollDelay, 1), pollMax);
+        }
+        nextPoll = now + pollDelay;
+        return true;
     }
 
 // --------------------------------- Commands to DIM -------------------------------------------
 
+    void drainResponses() {
+        // Callback thread: move responses that did not fit the upQueue
+        drainBacklog(upQueue, upBacklog, responseHandover);
+        upHeld = upBacklog.length();
+    }
+
+    boolean hasQueued() {
+        // Any thread: requests or held writes the bus owner can take
+        return !isDownEmpty() || hasHeldWrites();
+    }
+
+    boolean hasRequests() {
+        // Bus owner: a request is due
+        long now = elapsedMicros();
+        boolean isEmpty = true;
+        for (int c = 0; c < CLASSES; c++) {
+            Element head = downQueue[c].peek();
+            if (head != null && head.notBefore <= now) return true;
+            if (head != null) isEmpty = false;
+        }
+        return isEmpty && hasHeldWrites();
+    }
+
+    private boolean hasHeldWrites() {
+        // Held writes wait for the requests made before them, also those still held in a backlog
+        return pendingWrites > 0 && downHeld == 0;
+    }
+
     private void executeCommands() {
+        // Only called by the owner of the bus, i.e. after idle was switched from true to false
+        if (port != null) {
+            port.executeCommands();         // The port picks whose turn it is
+            return;
+        }
+        while (true) {
+            if (dispatch()) return;
+            if (isDispatched) {
+                try {
+                    wLock.lock();
+                    wCache[DEV_ADDR] = -1;           // No further polling is required
+                } finally {
+                    wLock.unlock();
+                }
+                recordIdle();
+            }
+            boolean isWaiting = hasLater;
+            idle.set(true);
+            if (isWaiting) return;          // Picked up by a later callback
+            // A request added after the poll above has seen the bus busy, so take it over again
+            if (!hasQueued() || !idle.compareAndSet(true, false)) return;
+        }
+    }
+
+    void recordIdle() {
+        isDispatched = false;
+        stats.recordIdle();
+    }
+
+    boolean dispatch() {
+        // Bus owner: send the next request, false when there is none
+        long now = elapsedMicros();
+        int c = nextClass(now);
+        Element element = c < 0 ? null : downQueue[c].poll();
+        if (c < 0 && !hasLater && hasHeldWrites()) {
+            try {
+                pendingLock.lock();         // The queues have drained, send the held writes
+                c = takeWrites(taken.cache);
+            } finally {
+                pendingLock.unlock();
+            }
+            if (c >= 0) {
+                element = taken;
+                element.timeStamp = now;
+            }
+        }
+        if (element == null) return false;
+        int parts = 0;
+        if (isCoalescing && element.cache[CACHE_MODE] == READ_MODE) {
+            parts = coalesceReads(element, downQueue[c], now);
+        }
+        isDispatched = true;
         try {
             wLock.lock();
-            if (downQueue.isEmpty()) {
-                isIdle = true;
-                wCache[DEV_ADDR] = -1;           // No further polling is required
-            } else {
-                getFromQueue(wCache, downQueue);    // Ignore timestamp
-                wCache[ACTION_FLAG] = -1;
-            }
+            copyCache(element.cache, wCache);   // Header is the merged burst
+            wCache[ACTION_FLAG] = -1;
         } finally {
             wLock.unlock();
         }
-        if (!isIdle) {
-            wireDev.writeI2cCacheToController();
+        enqueueMicros = element.timeStamp;
+        dispatchClass = c;
+        burstListener = element.listener;
+        element.listener = null;
+        burstSlot = element.slot;
+        element.slot = 0;
+        dispatchMicros = elapsedMicros();
+        burstParts = parts;             // Publish the parts before the burst is sent
+        if (element.cache[CACHE_MODE] == WRITE_MODE) {
+            shadow.update(element.cache, dispatchMicros);   // Everything before it has completed
+        }
+        WireRecorder capture = recorder;
+        if (capture != null) {
+            capture.record(WireRecorder.DISPATCH, startTime + dispatchMicros * 1000L, element.cache);
         }
+        if (element != taken) downPool.offer(element);  // Recycle, a surplus element is left to GC
+        wireDev.writeI2cCacheToController();
+        return true;
     }
 
-    private void addRequest() {
-        boolean isStarting = false;
+    private int nextClass(long now) {
+        // Bus owner: most urgent waiting class, unless a waiting class was passed over too often
+        int chosen = -1;
+        int starved = -1;
+        int due = 0;                        // Bit per class with a due request at the head
+        hasLater = false;
+        for (int c = 0; c < CLASSES; c++) {
+            Element head = downQueue[c].peek();
+            if (head == null) {
+                passedOver[c] = 0;
+                continue;
+            }
+            if (head.notBefore > now) {
+                hasLater = true;            // Scheduled, the class is not waiting yet
+                continue;
+            }
+            due |= 1 << c;
+            if (chosen < 0) chosen = c;
+            if (passedOver[c] >= starvationLimit && (starved < 0 || passedOver[c] > passedOver[starved])) {
+                starved = c;
+            }
+        }
+        if (starved >= 0) chosen = starved;
+        for (int c = 0; c < CLASSES; c++) {
+            if (c == chosen) {
+                passedOver[c] = 0;
+            } else if ((due & (1 << c)) != 0) {
+                passedOver[c]++;
+            }
+        }
+        return chosen;
+    }
+
+    private boolean addRequest() {
 //        logCache('d',"addRequest");
+        flushWrites();                      // Keep the order of held writes and this request
+        int result = addRequest(dCache, dListener, dSlot, priority, dNotBefore);
+        stats.recordQueueDepth(downLength());
+        if (!isCoalescing) {
+            startRequests();
+        }
+        return result != REJECTED;
+    }
+
+    private int addRequest(byte[] cache, WireListener listener, int slot, int c, long notBefore) {
+        // OpMode thread: with coalescing the request is held until the next flush, to be merged
+        int result = addToQueue(elapsedMicros(), notBefore, cache, listener, slot, downQueue[c],
+                downPool, downBacklog[c], requestLimit, requestHandover, requestOverflow, isCoalescing);
+        if (result != ACCEPTED) requestOverflows++;
+        downHeld = heldLength();
+        return result;
+    }
+
+    private int coalesceReads(Element first, SpscQueue<Element> queue, long now) {
+        // Bus owner: extend the first read with directly following reads of the same device.
+        // Returns the number of merged parts, 0 if nothing was merged.
+        byte[] cache = first.cache;
+        int start = cache[REG_NUMBER] & 0xff;
+        int end = start + cache[REG_COUNT];
+        if (cache[REG_COUNT] <= 0) return 0;
+        partRegister[0] = start;
+        partCount[0] = cache[REG_COUNT];
+        partListener[0] = first.listener;
+        partSlot[0] = first.slot;
+        int parts = 1;
+        Element next;
+        while (parts < MAX_BURST && (next = queue.peek()) != null) {
+            byte[] nCache = next.cache;
+            if (nCache[CACHE_MODE] != READ_MODE || nCache[DEV_ADDR] != cache[DEV_ADDR]) break;
+            if (next.notBefore > now) break;                                    // Scheduled
+            int nStart = nCache[REG_NUMBER] & 0xff;
+            int nEnd = nStart + nCache[REG_COUNT];
+            if (nCache[REG_COUNT] <= 0 || nStart > end || nEnd < start) break;  // Not adjacent
+            int mStart = Math.min(start, nStart);
+            int mEnd = Math.max(end, nEnd);
+            if (mEnd - mStart > MAX_BURST) break;                               // Too long
+            start = mStart;
+            end = mEnd;
+            partRegister[parts] = nStart;
+            partCount[parts] = nCache[REG_COUNT];
+            partListener[parts] = next.listener;
+            next.listener = null;
+            partSlot[parts] = next.slot;
+            next.slot = 0;
+            parts++;
+            queue.poll();
+            downPool.offer(next);
+            coalescedReads++;
+        }
+        if (parts == 1) return 0;
+        cache[REG_NUMBER] = (byte) start;
+        cache[REG_COUNT] = (byte) (end - start);
+        return parts;
+    }
+
+    private void startRequests() {
+        // OpMode thread: move any backlog down and take over the bus if it went idle
+        for (int c = 0; c < CLASSES; c++) drainBacklog(downQueue[c], downBacklog[c], requestHandover);
+        downHeld = heldLength();
+        if (hasQueued() && idle.compareAndSet(true, false)) {
+            executeCommands();              // On a shared port, possibly another Wire's turn
+        }
+    }
+
+    private boolean isDownEmpty() {
+        for (int c = 0; c < CLASSES; c++) {
+            if (!downQueue[c].isEmpty()) return false;
+        }
+        return true;
+    }
+
+    private int downLength() {
+        int length = 0;
+        for (int c = 0; c < CLASSES; c++) length += downQueue[c].length() + downBacklog[c].length();
+        return length;
+    }
+
+    private int heldLength() {
+        int length = 0;
+        for (int c = 0; c < CLASSES; c++) length += downBacklog[c].length();
+        return length;
+    }
+
+    private void flushWrites() {
+        // OpMode thread: queue the held writes in the order they were written, ahead of a
+        // request made after them
+        if (pendingWrites == 0) return;
         try {
-            wLock.lock();
-            if (isIdle) {
-                int length = DATA_OFFSET + dCache[REG_COUNT];
-                for (int i = 0; i < length; i++) wCache[i] = dCache[i];
-                wCache[ACTION_FLAG] = -1;
-                isIdle = false;
-                isStarting = true;
-            } else {
-                addToQueue(0L, dCache, downQueue);
-            }
+            pendingLock.lock();             // The bus owner takes no run in between
+            int c;
+            while ((c = takeWrites(cCache)) >= 0) addRequest(cCache, null, 0, c, 0L);
         } finally {
-            wLock.unlock();
-        }
-        if (isStarting) {
-            wireDev.writeI2cCacheToController();
+            pendingLock.unlock();
         }
+        stats.recordQueueDepth(downLength());
+    }
+
+    private int takeWrites(byte[] cache) {
+        // pendingLock is held: move the oldest run of registers that were written one after the
+        // other in ascending order into cache. Returns its class, -1 when no write is held.
+        if (pendingWrites == 0) return -1;
+        int first = pendingOrder[0];
+        int count = 0;
+        int regNumber;
+        do {
+            regNumber = pendingOrder[count];
+            if (count > 0) combinedWrites++;    // Packed into the previous register's write
+            cache[DATA_OFFSET + count++] = pendingValue[regNumber];
+            isPending[regNumber] = false;
+        } while (count < pendingWrites && pendingOrder[count] == regNumber + 1 && count < MAX_BURST);
+        cache[CACHE_MODE] = WRITE_MODE;
+        cache[DEV_ADDR] = wireDevAddr;
+        cache[REG_NUMBER] = (byte) first;
+        cache[REG_COUNT] = (byte) count;
+        System.arraycopy(pendingOrder, count, pendingOrder, 0, pendingWrites - count);
+        pendingWrites -= count;
+        int c = pendingPriority;
+        if (pendingWrites == 0) pendingPriority = CLASSES - 1;
+        return c;
+    }
+
+    private void removePending(int regNumber) {
+        // pendingLock is held
+        int i = 0;
+        while (pendingOrder[i] != regNumber) i++;
+        System.arraycopy(pendingOrder, i + 1, pendingOrder, i, --pendingWrites - i);
     }
 
 // --------------------------------- PROCESSING OF RECEIVED DATA -------------------------------
 
     private void storeReceivedData() {
         // rCache has been locked
-        long uMicros = (System.nanoTime() - startTime) / 1000L;
-        addToQueue(uMicros, rCache, upQueue);
+        long uMicros = elapsedMicros();
+        int parts = burstParts;
+        long bus = uMicros - dispatchMicros;
+        int regNumber = rCache[REG_NUMBER] & 0xff;
+        stats.recordTransaction(regNumber, rCache[REG_COUNT], dispatchClass,
+                dispatchMicros - enqueueMicros, bus);
+        roundTrip[regNumber] += (int) (bus - roundTrip[regNumber]) / 4;    // Running average
+        if (rCache[CACHE_MODE] == READ_MODE) {
+            shadow.update(rCache, uMicros);     // Whole burst, before it is split
+        }
+        replyRecorder = recorder;
+        if (replyRecorder != null) {
+            copyCache(rCache, yCache);      // Recorded by recordReply(), outside the lock
+            replyMicros = uMicros;
+        }
+        if (parts == 0 || rCache[CACHE_MODE] != READ_MODE) {
+            closeSlot(burstSlot, SLOT_DONE);
+            addResponse(uMicros, rCache, burstListener, burstSlot);
+            burstListener = null;
+            burstSlot = 0;
+        } else {
+            splitBurst(uMicros, parts);
+        }
+        upHeld = upBacklog.length();
 //        logCache('r',"storeReceivedData");
     }
 
+    private void recordReply() {
+        // Callback thread, rLock is released: ahead of the next dispatch in the capture
+        if (replyRecorder == null) return;
+        replyRecorder.record(WireRecorder.REPLY, startTime + replyMicros * 1000L, yCache);
+        replyRecorder = null;
+    }
+
+    private long elapsedMicros() {
+        return (System.nanoTime() - startTime) / 1000L;
+    }
+
+    private void splitBurst(long uMicros, int parts) {
+        // Give each merged read its own slice of the burst, in request order
+        int start = rCache[REG_NUMBER] & 0xff;
+        for (int i = 0; i < DATA_OFFSET; i++) sCache[i] = rCache[i];
+        for (int part = 0; part < parts; part++) closeSlot(partSlot[part], SLOT_DONE);
+        burstSlot = 0;                      // Also partSlot[0]
+        for (int part = 0; part < parts; part++) {
+            sCache[REG_NUMBER] = (byte) partRegister[part];
+            sCache[REG_COUNT] = (byte) partCount[part];
+            System.arraycopy(rCache, DATA_OFFSET + partRegister[part] - start,
+                    sCache, DATA_OFFSET, partCount[part]);
+            addResponse(uMicros, sCache, partListener[part], partSlot[part]);
+            partListener[part] = null;
+            partSlot[part] = 0;
+        }
+    }
+
 //------------------------------------------------- Add and Remove from Queue ------------------
 
-    private void addToQueue(long timeStamp, byte[] cache, ArrayQueue<Element> queue) {
-        int length = DATA_OFFSET + cache[REG_COUNT];
-        Element element = new Element();
+    private void addResponse(long timeStamp, byte[] cache, WireListener listener, int slot) {
+        // Callback thread
+        int result = addToQueue(timeStamp, 0L, cache, listener, slot, upQueue, upPool, upBacklog,
+                responseLimit, responseHandover, responseOverflow, false);
+        if (result != ACCEPTED) responseOverflows++;
+    }
+
+    private int addToQueue(long timeStamp, long notBefore, byte[] cache, WireListener listener,
+                           int slot, SpscQueue<Element> queue, SpscQueue<Element> pool,
+                           ArrayQueue<Element> backlog, int limit, int handover, Overflow policy,
+                           boolean isHeld) {
+        // Producer side of queue. Only elements still in the backlog can be dropped or merged,
+        // those in the queue belong to the consumer. The queue gets at most handover elements,
+        // so there are held ones whenever the limit is reached.
+        if (!isHeld) drainBacklog(queue, backlog, handover);
+        Element element = null;
+        int result = ACCEPTED;
+        if (queue.length() + backlog.length() >= limit) {
+            switch (policy) {
+                case COALESCE:
+                    element = findMatch(cache, listener, backlog);
+                    if (element == null) return REJECTED;
+                    if (element.slot > 0) {         // Its waiters take the new data too
+                        closeSlot(slot, SLOT_LOST);
+                        slot = element.slot;
+                    }
+                    fillElement(element, timeStamp, notBefore, cache, listener, slot);  // Keeps its place
+                    return MERGED;
+                case DROP_OLDEST:
+                    element = backlog.remove();     // Reused for the new element
+                    if (element == null) return REJECTED;
+                    closeSlot(element.slot, SLOT_LOST);
+                    result = DROPPED;
+                    break;
+                default:
+                    return REJECTED;
+            }
+        }
+        if (element == null) element = pool.poll();
+        if (element == null) element = newElement();    // Pool exhausted, grow it by one
+        fillElement(element, timeStamp, notBefore, cache, listener, slot);
+        if (isHeld) {
+            backlog.add(element);
+        } else {
+            enqueue(element, queue, backlog, handover);
+        }
+        return result;
+    }
+
+    private Element findMatch(byte[] cache, WireListener listener, ArrayQueue<Element> backlog) {
+        // Newest held element for the same registers and listener, null if none
+        for (int i = backlog.length() - 1; i >= 0; i--) {
+            Element element = backlog.get(i);
+            if (element.listener == listener &&
+                    element.cache[CACHE_MODE] == cache[CACHE_MODE] &&
+                    element.cache[DEV_ADDR] == cache[DEV_ADDR] &&
+                    element.cache[REG_NUMBER] == cache[REG_NUMBER] &&
+                    element.cache[REG_COUNT] == cache[REG_COUNT]) {
+                return element;
+            }
+        }
+        return null;
+    }
+
+    private void fillElement(Element element, long timeStamp, long notBefore, byte[] cache,
+                             WireListener listener, int slot) {
         element.timeStamp = timeStamp;
-        element.cache = new byte[length];
-        for (int i = 0; i < length; i++) element.cache[i] = cache[i];
-        queue.add(element);
+        element.notBefore = notBefore;
+        element.listener = listener;
+        element.slot = slot;
+        copyCache(cache, element.cache);
     }
 
-    private long getFromQueue(byte[] cache, ArrayQueue<Element> queue) {
-        Element element = queue.remove();
+    private void enqueue(Element element, SpscQueue<Element> queue, ArrayQueue<Element> backlog,
+                         int handover) {
+        if (!backlog.isEmpty() || queue.length() >= handover || !queue.offer(element)) {
+            backlog.add(element);               // Keep the order, retry on the next call
+        }
+    }
+
+    private long getFromQueue(byte[] cache, SpscQueue<Element> queue, SpscQueue<Element> pool) {
+        Element element = queue.poll();
         if (element == null) return 0;
-        int length = element.cache.length;
         long timeStamp = element.timeStamp;
-        for (int i = 0; i < length; i++) cache[i] = element.cache[i];
+        copyCache(element.cache, cache);
+        element.listener = null;
+        element.slot = 0;
+        pool.offer(element);                    // Recycle the element
         return timeStamp;
     }
 
+    private void deliver(Element element, ArrayQueue<Element> pool) {
+        // OpMode thread: show the response to its listener, then recycle the element.
+        // A copy comes from pool, an element from the upQueue when pool is null.
+        WireListener listener = element.listener;
+        element.listener = null;
+        if (pool == null) fanOut(element.slot, element.cache, element.timeStamp);
+        element.slot = 0;
+        response.wrap(element.cache, element.timeStamp);
+        listener.onResponse(response);
+        if (pool == null) {
+            upPool.offer(element);
+        } else {
+            pool.add(element);
+        }
+    }
+
+    private void fanOut(int slot, byte[] cache, long timeStamp) {
+        // OpMode thread: free the read's slot and queue a copy of its response for each waiter
+        if (slot == 0) return;
+        isSlotUsed[slot] = false;
+        int kept = 0;
+        for (int w = 0; w < waiters; w++) {
+            if (waiterSlot[w] == slot) {
+                Element copy = replayPool.remove();
+                if (copy == null) copy = newElement();
+                copy.timeStamp = timeStamp;
+                copy.listener = waiterListener[w];
+                copyCache(cache, copy.cache);
+                replay.add(copy);
+            } else {
+                waiterSlot[kept] = waiterSlot[w];
+                waiterListener[kept++] = waiterListener[w];
+            }
+        }
+        for (int w = kept; w < waiters; w++) waiterListener[w] = null;
+        waiters = kept;
+    }
+
+    private int openSlot(int key) {
+        // OpMode thread: slot of a read others can still attach to, 0 if none
+        for (int slot = 1; slot <= MAX_OPEN; slot++) {
+            if (isSlotUsed[slot] && slotState.get(slot) == SLOT_LOST) dropSlot(slot);
+        }
+        for (int slot = 1; slot <= MAX_OPEN; slot++) {
+            if (isSlotUsed[slot] && !isSlotClosed[slot] && openKey[slot] == key
+                    && slotState.get(slot) == SLOT_OPEN) {
+                return slot;
+            }
+        }
+        return 0;
+    }
+
+    private void dropSlot(int slot) {
+        // OpMode thread: the read was dropped by an overflow policy, so are its waiters
+        isSlotUsed[slot] = false;
+        int kept = 0;
+        for (int w = 0; w < waiters; w++) {
+            if (waiterSlot[w] != slot) {
+                waiterSlot[kept] = waiterSlot[w];
+                waiterListener[kept++] = waiterListener[w];
+            }
+        }
+        for (int w = kept; w < waiters; w++) waiterListener[w] = null;
+        waiters = kept;
+    }
+
+    private int newSlot(int key) {
+        // OpMode thread: slot for a read that is about to be queued, 0 when all are in use
+        for (int slot = 1; slot <= MAX_OPEN; slot++) {
+            if (!isSlotUsed[slot]) {
+                isSlotUsed[slot] = true;
+                isSlotClosed[slot] = false;
+                openKey[slot] = key;
+                slotState.set(slot, SLOT_OPEN);     // Published with the element
+                return slot;
+            }
+        }
+        return 0;
+    }
+
+    private void closeSlot(int slot, int state) {
+        // Any thread: the read completed or was lost, nobody attaches to it any more
+        if (slot > 0) slotState.set(slot, state);
+    }
+
+    private void closeReads(int regNumber, int regCount) {
+        // OpMode thread: a write to these registers was issued, reads after it need their own
+        int end = regNumber + Math.max(regCount, 1);
+        for (int slot = 1; slot <= MAX_OPEN; slot++) {
+            if (!isSlotUsed[slot]) continue;
+            int start = openKey[slot] >> 8;
+            if (start < end && regNumber < start + (openKey[slot] & 0xff)) isSlotClosed[slot] = true;
+        }
+    }
+
+    private int readKey(int regNumber, int regCount) {
+        return ((regNumber & 0xff) << 8) | (regCount & 0xff);
+    }
+
+    private void drainBacklog(SpscQueue<Element> queue, ArrayQueue<Element> backlog, int handover) {
+        if (!backlog.isEmpty()) queue.offerAll(backlog, handover);
+    }
+
+    private void copyCache(byte[] from, byte[] to) {
+        int length = Math.min(DATA_OFFSET + from[REG_COUNT], CACHE_SIZE);
+        System.arraycopy(from, 0, to, 0, length);
+    }
+
+    @SuppressWarnings({"unchecked", "rawtypes"})    // The array casting is OK
+    private SpscQueue<Element>[] newQueues() {
+        SpscQueue<Element>[] queues = new SpscQueue[CLASSES];
+        for (int c = 0; c < CLASSES; c++) queues[c] = new SpscQueue<Element>(POOL_SIZE);
+        return queues;
+    }
+
+    @SuppressWarnings({"unchecked", "rawtypes"})    // The array casting is OK
+    private ArrayQueue<Element>[] newBacklogs() {
+        ArrayQueue<Element>[] backlogs = new ArrayQueue[CLASSES];
+        for (int c = 0; c < CLASSES; c++) backlogs[c] = new ArrayQueue<Element>(REQUEST_LIMIT + 1);
+        return backlogs;
+    }
+
+    private Element newElement() {
+        // Any element beyond the initial pools, counted for allocationCount()
+        allocations.incrementAndGet();
+        return new Element();
+    }
+
+    private SpscQueue<Element> newPool() {
+        SpscQueue<Element> pool = new SpscQueue<Element>(POOL_SIZE);
+        for (int i = 0; i < pool.capacity(); i++) pool.offer(new Element());
+        return pool;
+    }
+
     class Element {
         public long timeStamp;
-        public byte[] cache;
+        public long notBefore;
+        public final byte[] cache = new byte[CACHE_SIZE];
+        public WireListener listener;
+        public int slot;                    // Open read slot, 0 none
     }
 
 
@@ -375,7 +1424,7 @@ public class Wire implements I2cController.I2cPortReadyCallback {
         if (showCount > 6) showCount = 6;
         String msg = String.format(
                 "%17s %c[%d][%d], %cCache: mod=0x%02X, dev=0x%02X, reg=0x%02X, cnt=%2d  ",
-                function, isIdle ? 'T' : 'F', downQueue.length(), upQueue.length(),
+                function, idle.get() ? 'T' : 'F', downLength(), upQueue.length(),
                 cacheLetter, cache[0], cache[1], cache[2], cache[3]);
         for (int i = 0; i < showCount; i++) {
             msg += String.format(" 0x%02X", cache[4 + i]);
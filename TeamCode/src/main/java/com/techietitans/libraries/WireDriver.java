@@ -0,0 +1,253 @@
+package com.techietitans.libraries;
+
+/**
+ * Base of register map drivers on top of Wire.
+ * <p/>
+ * A driver declares in its constructor what it wants to read and leaves the state machine to
+ * this class:
+ * <pre>
+ *   STATUS = field(0x93, 1, Order.LH);
+ *   RED = field(0x96, 2, Order.LH);
+ *   readyWhen(STATUS, 0x01, 0x01);
+ * </pre>
+ * The fields are packed into as few burst reads as the DIM allows (a cycle). Cycles are
+ * requested with a listener, so the driver never demultiplexes responses by hand. When the
+ * last read of a cycle is in, the fields are decoded; if the ready condition holds they become
+ * the current sample, with the Wire time stamp of the reply.
+ * <p/>
+ * The polling plan sets how often a cycle starts (0 is back to back) and how many cycles may
+ * be outstanding, so the next request is already queued when a reply comes in. With a period
+ * the cycles are queued ahead with Wire.requestAt(), so their timing does not depend on the
+ * OpMode loop. The loop does not allocate. Call update() once per OpMode loop.
+ */
+public class WireDriver implements WireListener {
+    // Byte order of multi-byte fields
+    public enum Order {
+        LH,                             // Low byte first, as Wire.readLH()
+        HL                              // High byte first, as Wire.readHL()
+    }
+
+    static final int
+            MAX_FIELDS = 16,                // Fields per driver
+            MAX_BLOCKS = 4;                 // Burst reads per cycle
+
+    // --------------------------------- CLASS VARIABLES -------------------------------------------
+    protected final Wire wire;
+
+    private int fields;                     // Declared fields
+    private final int[] fieldRegister = new int[MAX_FIELDS];
+    private final int[] fieldWidth = new int[MAX_FIELDS];
+    private final boolean[] isLowFirst = new boolean[MAX_FIELDS];
+    private final int[] fieldBlock = new int[MAX_FIELDS];     // Burst read holding the field
+
+    private int readyField = -1;            // Field tested for data ready, -1 when none
+    private int readyMask;
+    private int readyValue;
+
+    private int blocks;                     // Burst reads per cycle, 0 until planned
+    private final int[] blockRegister = new int[MAX_BLOCKS];
+    private final int[] blockCount = new int[MAX_BLOCKS];
+    private final byte[][] blockData = new byte[MAX_BLOCKS][Wire.CACHE_SIZE];
+    private int assembled;                  // Bit per block of the cycle being received
+    private long cycleMicros;               // Reply time of the last block
+
+    private int periodMicros;               // Time between cycle starts, 0 is back to back
+    private int depth = 1;                  // Cycles outstanding at most
+    private int outstanding;                // Block reads requested and not answered
+    private long nextCycle;                 // Earliest start of the next cycle, Wire time (us)
+    private boolean isRunning;
+    private boolean isDeferred;             // Last cycle was held back, the bus is saturated
+
+    private final int[] value = new int[MAX_FIELDS];          // Current sample
+    private long sampleMicros;
+    private boolean isNewSample;
+    private int samples;                    // Samples that passed the ready test
+    private int notReady;                   // Cycles that failed it
+    private long startMicros;
+
+// --------------------------------- CLASS INIT AND CLOSE ---------------------------------------
+
+    public WireDriver(Wire wire) {
+        this.wire = wire;
+    }
+
+    public void close() {
+        stop();
+        wire.close();
+    }
+
+    //------------------------------------------------- Declaration ----------------------------
+
+    protected int field(int regNumber, int width, Order order) {
+        // Returns the handle used with value()
+        if (fields >= MAX_FIELDS) throw new IllegalStateException("Too many fields");
+        fieldRegister[fields] = regNumber & 0xff;
+        fieldWidth[fields] = Math.max(1, Math.min(width, 4));
+        isLowFirst[fields] = (order == Order.LH);
+        blocks = 0;                         // Plan again
+        return fields++;
+    }
+
+    protected void readyWhen(int field, int mask, int value) {
+        readyField = field;
+        readyMask = mask;
+        readyValue = value;
+    }
+
+    protected void setPlan(int periodMicros, int depth) {
+        this.periodMicros = Math.max(periodMicros, 0);
+        this.depth = Math.max(depth, 1);
+    }
+
+    private void plan() {
+        // Cover the fields with burst reads, in register order, each within one cache
+        blocks = 0;
+        int done = 0;                       // Bit per planned field
+        while (Integer.bitCount(done) < fields) {
+            int first = -1;
+            for (int f = 0; f < fields; f++) {
+                if ((done & (1 << f)) == 0 && (first < 0 || fieldRegister[f] < fieldRegister[first])) {
+                    first = f;
+                }
+            }
+            if (blocks >= MAX_BLOCKS) throw new IllegalStateException("Fields too far apart");
+            int start = fieldRegister[first];
+            int end = start;
+            for (int f = 0; f < fields; f++) {
+                int last = fieldRegister[f] + fieldWidth[f];
+                if ((done & (1 << f)) == 0 && fieldRegister[f] >= start
+                        && last - start <= Wire.MAX_BURST) {
+                    end = Math.max(end, last);
+                    fieldBlock[f] = blocks;
+                    done |= 1 << f;
+                }
+            }
+            blockRegister[blocks] = start;
+            blockCount[blocks++] = end - start;
+        }
+    }
+
+    //------------------------------------------------- Acquisition ----------------------------
+
+    public void start() {
+        if (blocks == 0) plan();
+        isRunning = true;
+        startMicros = wire.nowMicros();
+        nextCycle = startMicros;
+        samples = 0;
+        notReady = 0;
+        requestCycles();
+    }
+
+    public void stop() {
+        isRunning = false;                  // Outstanding replies still come in
+    }
+
+    public boolean update() {
+        // True when a new sample came in since the last call
+        wire.processResponses();
+        while (wire.getResponse()) {
+            onOtherResponse();              // Not one of ours, e.g. a configuration write
+        }
+        requestCycles();
+        boolean isNew = isNewSample;
+        isNewSample = false;
+        return isNew;
+    }
+
+    protected void onOtherResponse() {
+    }
+
+    private void requestCycles() {
+        while (isRunning && blocks > 0 && outstanding + blocks <= depth * blocks) {
+            isDeferred = wire.isSaturated();
+            if (isDeferred) return;
+            long now = wire.nowMicros();
+            if (nextCycle < now) nextCycle = now;           // Late, don't make up for it
+            for (int b = 0; b < blocks; b++) {
+                boolean isQueued = (b == 0 && periodMicros > 0)
+                        ? wire.requestAt(nextCycle, blockRegister[b], blockCount[b], this)
+                        : wire.requestFrom(blockRegister[b], blockCount[b], this);
+                if (!isQueued) return;
+                outstanding++;
+            }
+            nextCycle += periodMicros;
+        }
+    }
+
+    protected void delayCycles(int micros) {
+        nextCycle += micros;                // Cycles already queued keep their time
+    }
+
+    @Override
+    public void onResponse(WireResponse response) {
+        outstanding = Math.max(outstanding - 1, 0);
+        int b = 0;
+        while (b < blocks && (blockRegister[b] != response.registerNumber()
+                || blockCount[b] != response.count())) b++;
+        if (b == blocks) return;            // Planned again since it was requested
+        if (b == 0) assembled = 0;          // A new cycle, drop a partial one
+        for (int i = 0; i < blockCount[b]; i++) blockData[b][i] = (byte) response.read(i);
+        assembled |= 1 << b;
+        cycleMicros = response.micros();
+        if (assembled == (1 << blocks) - 1) {
+            assembled = 0;
+            publish();
+        }
+        requestCycles();
+    }
+
+    private void publish() {
+        if (readyField >= 0 && (decode(readyField) & readyMask) != readyValue) {
+            notReady++;                     // Conversion not done yet
+            return;
+        }
+        for (int f = 0; f < fields; f++) value[f] = decode(f);
+        sampleMicros = cycleMicros;
+        samples++;
+        isNewSample = true;
+        onSample();
+    }
+
+    protected void onSample() {
+        // Called on the OpMode thread with each new sample, value() holds it
+    }
+
+    private int decode(int f) {
+        byte[] data = blockData[fieldBlock[f]];
+        int offset = fieldRegister[f] - blockRegister[fieldBlock[f]];
+        int result = 0;
+        for (int i = 0; i < fieldWidth[f]; i++) {
+            int index = isLowFirst[f] ? offset + fieldWidth[f] - 1 - i : offset + i;
+            result = (result << 8) | (data[index] & 0xff);
+        }
+        return result;
+    }
+
+    //------------------------------------------------- Results --------------------------------
+
+    public int value(int field) {
+        return value[field];
+    }
+
+    public long micros() {
+        return sampleMicros;                // Wire time of the reply
+    }
+
+    public boolean isDeferred() {
+        return isDeferred;
+    }
+
+    public int sampleCount() {
+        return samples;
+    }
+
+    public int notReadyCount() {
+        return notReady;
+    }
+
+    public double samplesPerSecond() {
+        long elapsed = wire.nowMicros() - startMicros;
+        return elapsed > 0 ? samples * 1.0E6 / elapsed : 0.0;
+    }
+}
@@ -0,0 +1,12 @@
+package com.techietitans.libraries;
+
+/**
+ * Receives the response of a Wire request made with requestFrom(regNumber, regCount, listener).
+ * Called on the OpMode thread from Wire.processResponses() or Wire.getResponse().
+ */
+public interface WireListener {
+    /**
+     * The response view is reused by Wire, it is only valid during this call.
+     */
+    void onResponse(WireResponse response);
+}
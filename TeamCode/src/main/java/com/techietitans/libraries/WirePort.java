@@ -0,0 +1,264 @@
+package com.techietitans.libraries;
+
+import com.qualcomm.robotcore.hardware.HardwareMap;
+import com.qualcomm.robotcore.hardware.I2cController;
+import com.qualcomm.robotcore.hardware.I2cDevice;
+
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.locks.Lock;
+
+/**
+ * Shares one DIM I2C port between several Wire objects, e.g. sensors with different addresses
+ * on the same cable, or sensors with the same address behind a TCA9548A style multiplexer.
+ * <p/>
+ * The port owns the callback registration and hands each callback to the Wire whose
+ * transaction is on the bus. All Wires of the port share one idle flag, so exactly one of
+ * them has a transaction in flight. When the bus frees up the next Wire is chosen round robin.
+ * A Wire can be given a rate budget in transactions per second; a Wire over its budget is
+ * only served when no Wire within its budget has work, so the bus never idles for a budget.
+ * <p/>
+ * With a multiplexer, a Wire created with a mux channel gets the channel selected before
+ * each of its transactions, unless it is still selected. The selection is a write of the
+ * channel mask with no data bytes, as the multiplexer has a single control register.
+ * <p/>
+ * Usage:
+ * <pre>
+ *   WirePort port = new WirePort(hardwareMap, "i2c0");
+ *   port.setMultiplexer(0xE0);
+ *   Wire left = new Wire(port, 0x52, 0);
+ *   Wire right = new Wire(port, 0x52, 1);
+ *   port.setRateBudget(right, 20);
+ * </pre>
+ */
+public class WirePort implements I2cController.I2cPortReadyCallback {
+    static final int
+            MAX_WIRES = 8,                  // Wires per port, a TCA9548A has 8 channels
+            BURST = 4;                      // Transactions a budget may save up
+
+    // --------------------------------- CLASS VARIABLES -------------------------------------------
+    final AtomicBoolean idle = new AtomicBoolean(true);   // Shared by the Wires of the port
+    private final I2cDevice device;
+    private final byte[] rCache;
+    private final byte[] wCache;
+    private final Lock rLock;
+    private final Lock wLock;
+    private final long startTime;
+
+    private final Wire[] wires = new Wire[MAX_WIRES];
+    private final int[] channel = new int[MAX_WIRES];     // Mux channel, -1 when not behind it
+    private final long[] interval = new long[MAX_WIRES];  // Budget, micros per transaction
+    private final long[] nextTurn = new long[MAX_WIRES];  // Budget, theoretical arrival time
+    private final int[] served = new int[MAX_WIRES];      // Transactions started per Wire
+    private volatile int wireCount;
+    private int next;                       // Round robin position, bus owner only
+    private boolean isWaiting;              // Bus owner saw only requests that are not due
+    private volatile Wire current;          // Wire with the transaction on the bus
+
+    private int muxAddr = -1;               // 8 bit multiplexer address, -1 without one
+    private int selected = -1;              // Channel the multiplexer is switched to
+    private volatile int selecting = -1;    // Slot waiting for its channel, -1 when none
+    private int selections;                 // Select transactions sent
+
+// --------------------------------- CLASS INIT AND CLOSE ---------------------------------------
+
+    public WirePort(HardwareMap hardwareMap, String deviceName) {
+        this(hardwareMap.i2cDevice.get(deviceName));
+    }
+
+    public WirePort(I2cDevice device) {
+        this.device = device;
+        rCache = device.getI2cReadCache();
+        wCache = device.getI2cWriteCache();
+        rLock = device.getI2cReadCacheLock();
+        wLock = device.getI2cWriteCacheLock();
+        startTime = System.nanoTime();
+        device.registerForI2cPortReadyCallback(this);
+    }
+
+    public void close() {
+        device.deregisterForPortReadyCallback();
+        device.close();
+    }
+
+    I2cDevice getDevice() {
+        return device;
+    }
+
+    synchronized void attach(Wire wire, int muxChannel) {
+        // Called by the Wire constructor, before the Wire has any traffic
+        int slot = wireCount;
+        if (slot >= MAX_WIRES) {
+            throw new IllegalStateException("WirePort supports " + MAX_WIRES + " devices");
+        }
+        wires[slot] = wire;
+        channel[slot] = muxChannel;
+        interval[slot] = 0L;
+        nextTurn[slot] = 0L;
+        wireCount = slot + 1;
+    }
+
+    synchronized void detach(Wire wire) {
+        // The slot stays, it has no requests any more
+        int slot = slotOf(wire);
+        if (slot >= 0) interval[slot] = 0L;
+    }
+
+    //------------------------------------------------- Public Methods -------------------------
+
+    public void setMultiplexer(int muxAddr) {
+        this.muxAddr = muxAddr;             // 8 bit address, 0xE0 for a TCA9548A at 0x70
+    }
+
+    public void setRateBudget(Wire wire, int transactionsPerSecond) {
+        int slot = slotOf(wire);
+        if (slot < 0) return;
+        interval[slot] = transactionsPerSecond > 0 ? 1000000L / transactionsPerSecond : 0L;
+    }
+
+    public int servedCount(Wire wire) {
+        int slot = slotOf(wire);
+        return slot < 0 ? 0 : served[slot];
+    }
+
+    public int selectCount() {
+        return selections;
+    }
+
+    private int slotOf(Wire wire) {
+        for (int slot = 0; slot < wireCount; slot++) {
+            if (wires[slot] == wire) return slot;
+        }
+        return -1;
+    }
+
+//------------------------------------------------- Main routine: Device CallBack -------------
+
+    public void portIsReady(int port) {
+        int count = wireCount;
+        Wire owner = current;
+        for (int slot = 0; slot < count; slot++) {
+            if (wires[slot] != owner) wires[slot].drainResponses();
+        }
+        if (selecting >= 0) {
+            if (isSelectDone()) {
+                selected = channel[selecting];
+                int slot = selecting;
+                selecting = -1;
+                if (!start(slot)) executeCommands();
+            } else {
+                device.readI2cCacheFromController();    // Keep polling active
+            }
+        } else if (owner != null) {
+            owner.portIsReady(port);
+        } else if (hasQueued() && idle.compareAndSet(true, false)) {
+            executeCommands();              // Scheduled work that is due, or nobody started
+        }
+    }
+
+    private boolean isSelectDone() {
+        try {
+            rLock.lock();
+            if (rCache[Wire.CACHE_MODE] == Wire.WRITE_MODE &&
+                    rCache[Wire.DEV_ADDR] == (byte) muxAddr &&
+                    rCache[Wire.REG_NUMBER] == (byte) (1 << channel[selecting]) &&
+                    rCache[Wire.REG_COUNT] == 0) {
+                rCache[Wire.REG_COUNT] = -1;                // Mark the reply used
+                return true;
+            }
+            return false;
+        } finally {
+            rLock.unlock();
+        }
+    }
+
+// --------------------------------- Commands to DIM -------------------------------------------
+
+    void executeCommands() {
+        // Only called by the owner of the bus, i.e. after idle was switched from true to false
+        while (true) {
+            int slot = nextSlot();
+            if (slot >= 0) {
+                if (muxAddr >= 0 && channel[slot] >= 0 && channel[slot] != selected) {
+                    select(slot);
+                    return;
+                }
+                if (start(slot)) return;
+                continue;                   // Nothing after all, look again
+            }
+            Wire last = current;
+            current = null;
+            if (last != null) {
+                try {
+                    wLock.lock();
+                    wCache[Wire.DEV_ADDR] = -1;     // No further polling is required
+                } finally {
+                    wLock.unlock();
+                }
+                last.recordIdle();
+            }
+            boolean isScheduled = isWaiting;
+            idle.set(true);
+            if (isScheduled) return;        // Picked up by a later callback
+            // A request added after the check above has seen the bus busy, so take it over again
+            if (!hasQueued() || !idle.compareAndSet(true, false)) return;
+        }
+    }
+
+    private int nextSlot() {
+        // Bus owner: round robin over Wires with requests, those within their budget first
+        int count = wireCount;
+        long now = (System.nanoTime() - startTime) / 1000L;
+        int fallback = -1;
+        isWaiting = false;
+        for (int i = 0; i < count; i++) {
+            int slot = (next + i) % count;
+            if (!wires[slot].hasRequests()) {
+                if (wires[slot].hasQueued()) isWaiting = true;
+                continue;
+            }
+            if (interval[slot] == 0L || now >= nextTurn[slot] - BURST * interval[slot]) {
+                return slot;
+            }
+            if (fallback < 0) fallback = slot;
+        }
+        return fallback;
+    }
+
+    private boolean start(int slot) {
+        // Bus owner: hand the bus to the Wire in slot for one transaction
+        Wire wire = wires[slot];
+        current = wire;
+        if (!wire.dispatch()) return false;
+        long now = (System.nanoTime() - startTime) / 1000L;
+        nextTurn[slot] = Math.max(nextTurn[slot], now) + interval[slot];
+        served[slot]++;
+        next = (slot + 1) % wireCount;
+        return true;
+    }
+
+    private void select(int slot) {
+        // Bus owner: switch the multiplexer, the Wire's transaction follows on the reply
+        current = null;
+        selecting = slot;
+        selections++;
+        try {
+            wLock.lock();
+            wCache[Wire.CACHE_MODE] = Wire.WRITE_MODE;
+            wCache[Wire.DEV_ADDR] = (byte) muxAddr;
+            wCache[Wire.REG_NUMBER] = (byte) (1 << channel[slot]);
+            wCache[Wire.REG_COUNT] = 0;
+            wCache[Wire.ACTION_FLAG] = -1;
+        } finally {
+            wLock.unlock();
+        }
+        device.writeI2cCacheToController();
+    }
+
+    private boolean hasQueued() {
+        int count = wireCount;
+        for (int slot = 0; slot < count; slot++) {
+            if (wires[slot].hasQueued()) return true;
+        }
+        return false;
+    }
+}
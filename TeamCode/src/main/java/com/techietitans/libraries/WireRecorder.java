@@ -0,0 +1,183 @@
+package com.techietitans.libraries;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Captures the I2C traffic of one or more Wire objects in a compact binary file, to be played
+ * back later with WireReplayer.
+ * <p/>
+ * File layout, big endian as written by DataOutputStream:
+ * <pre>
+ *   header : "WREC" version(1)
+ *   record : type('D' dispatched request, 'R' received reply) micros(8)
+ *            mode(1) devAddr(1) register(1) count(1) payloadLength(1) payload(payloadLength)
+ * </pre>
+ * Write requests and read replies carry their data as payload, read requests and write replies
+ * carry none. Times are microseconds since the recorder was made, one time base for all the
+ * Wires recording into it.
+ * <p/>
+ * record() never touches the SD card. Records are copied into one of BLOCKS preallocated
+ * buffers; a full buffer, or one older than FLUSH_MILLIS, is written by the recorder's own
+ * thread and handed back. When the writer still has all buffers the record is dropped and
+ * counted, so a stall of the card costs records, not port callback time.
+ */
+public class WireRecorder {
+    static final int MAGIC = 0x57524543;    // "WREC"
+    static final int VERSION = 1;
+    static final byte
+            DISPATCH = 'D',
+            REPLY = 'R';
+
+    static final int
+            BLOCK_SIZE = 8192,              // Bytes per buffer
+            BLOCKS = 4,                     // Buffers between the Wires and the writer
+            FLUSH_MILLIS = 500;             // A partly filled buffer is written after this
+
+    private static class Block {
+        final byte[] data = new byte[BLOCK_SIZE];
+        final ByteBuffer buffer = ByteBuffer.wrap(data);    // Big endian
+        int length;
+        long startMillis;                   // Time of the first record in it
+    }
+
+    // --------------------------------- CLASS VARIABLES -------------------------------------------
+    private OutputStream stream;            // Written a whole buffer at a time, null when closed
+    private final long startNanos;          // Time base of the records
+    private Thread writerThread;
+    private SpscQueue<Block> full;          // Recording threads, one at a time, to the writer
+    private SpscQueue<Block> free;          // And back
+    private Block block;                    // Being filled, null when none was free
+    private volatile boolean isClosing;
+    private int dropped;                    // Records lost because the writer fell behind
+
+    public WireRecorder(String fileName) {
+        this(new File("/sdcard/FIRST/WireRecorder", fileName + ".wrec"));
+    }
+
+    public WireRecorder(File file) {
+        startNanos = System.nanoTime();
+        file.getParentFile().mkdirs();          // Make sure that the directory exists
+        try {
+            stream = new FileOutputStream(file);
+            ByteBuffer header = ByteBuffer.allocate(5);
+            header.putInt(MAGIC);
+            header.put((byte) VERSION);
+            stream.write(header.array());   // Before the writer thread starts
+        } catch (IOException e) {
+            stream = null;
+            return;
+        }
+        full = new SpscQueue<Block>(BLOCKS);
+        free = new SpscQueue<Block>(BLOCKS);
+        for (int i = 1; i < BLOCKS; i++) free.offer(new Block());
+        block = new Block();
+        writerThread = new Thread(new Runnable() {
+            public void run() {
+                writeBlocks();
+            }
+        }, "WireRecorder");
+        writerThread.setDaemon(true);
+        writerThread.start();
+    }
+
+    void record(byte type, long nanoTime, byte[] cache) {
+        // Called by Wire from both of its threads, with no device lock held
+        int count = cache[Wire.REG_COUNT];
+        boolean hasPayload = (type == DISPATCH) == (cache[Wire.CACHE_MODE] == Wire.WRITE_MODE);
+        int payloadLength = 0;
+        if (hasPayload) {
+            payloadLength = Math.max(0, Math.min(count, Wire.CACHE_SIZE - Wire.DATA_OFFSET));
+        }
+        synchronized (this) {
+            if (stream == null || isClosing || !reserve(14 + payloadLength)) return;
+            ByteBuffer buffer = block.buffer;
+            buffer.clear().position(block.length);
+            buffer.put(type);
+            buffer.putLong(Math.max(nanoTime - startNanos, 0L) / 1000L);
+            buffer.put(cache, Wire.CACHE_MODE, Wire.DATA_OFFSET);
+            buffer.put((byte) payloadLength);
+            buffer.put(cache, Wire.DATA_OFFSET, payloadLength);
+            block.length = buffer.position();
+        }
+    }
+
+    public synchronized int droppedCount() {
+        return dropped;
+    }
+
+    public void close() {
+        Thread thread;
+        synchronized (this) {
+            if (stream == null || isClosing) return;
+            if (block != null && block.length > 0) full.offer(block);
+            block = null;
+            isClosing = true;
+            thread = writerThread;
+        }
+        LockSupport.unpark(thread);
+        try {
+            thread.join();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    //------------------------------------------------- Buffers --------------------------------
+
+    private boolean reserve(int size) {
+        // Monitor is held: make room for size bytes, false when the record is dropped
+        if (block != null && block.length + size > BLOCK_SIZE) handOver();
+        if (block == null) block = free.poll();
+        if (block == null) {
+            dropped++;
+            return false;
+        }
+        if (block.length == 0) block.startMillis = System.currentTimeMillis();
+        return true;
+    }
+
+    private void handOver() {
+        // Monitor is held
+        full.offer(block);                  // Always fits, there are only BLOCKS buffers
+        LockSupport.unpark(writerThread);
+        block = free.poll();
+    }
+
+    private synchronized void handOverStale() {
+        // Writer thread: a buffer nobody added to for FLUSH_MILLIS is written anyway
+        if (isClosing || block == null || block.length == 0) return;
+        if (System.currentTimeMillis() - block.startMillis >= FLUSH_MILLIS) handOver();
+    }
+
+    private void writeBlocks() {
+        // Writer thread
+        while (true) {
+            Block next = full.poll();
+            if (next == null) {
+                if (!isClosing) {
+                    LockSupport.parkNanos(FLUSH_MILLIS * 1000000L);
+                    handOverStale();
+                    continue;
+                }
+                next = full.poll();         // The last hand over came before isClosing
+                if (next == null) break;
+            }
+            try {
+                stream.write(next.data, 0, next.length);
+                stream.flush();
+            } catch (IOException e) {
+            }
+            next.length = 0;
+            free.offer(next);
+        }
+        try {
+            stream.close();
+        } catch (IOException e) {
+        }
+    }
+}
@@ -0,0 +1,210 @@
+package com.techietitans.libraries;
+
+import java.io.BufferedInputStream;
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+
+/**
+ * Plays back a WireRecorder capture as an I2C device.
+ * <p/>
+ * A driver runs on a Wire built on this device, exactly as on the robot. Each transaction the
+ * driver dispatches is matched with the next recorded request of the same device address,
+ * mode, register and count. It then takes as long as the recorded one did, divided by the
+ * speed factor, and a read answers with the recorded reply data. A transaction without a
+ * recorded match falls back to the register file of SimulatedI2cDevice and is counted in
+ * mismatchCount(), and so is every recorded request of that device passed over to find a match.
+ * <p/>
+ * Each device address is matched in its own recorded order, so a capture of several Wires or
+ * ports plays back with the order between devices set by the drivers. A reply is paired with
+ * the oldest unanswered request that has the same header; a request without a recorded reply
+ * is left out.
+ * <p/>
+ * The whole capture is loaded into primitive arrays up front, playback does not allocate.
+ */
+public class WireReplayer extends SimulatedI2cDevice {
+    private int records;                    // Recorded request/reply pairs
+    private byte[] headers;                 // mode, devAddr, register, count per pair
+    private long[] busNanos;                // Recorded dispatch to reply time per pair
+    private byte[] payloads;                // Reply data per pair, CACHE_SIZE bytes each
+    private double speed;
+    private int[] nextOfDevice;             // Next pair of the same device address, or -1
+    private int[] cursor;                   // Next pair to match per device address, or -1
+    private int replayed;                   // Pairs matched
+    private int skipped;                    // Pairs passed over by a match
+    private int current;                    // Pair answering the transaction on the bus, or -1
+    private int currentRegister;
+    private int mismatches;
+
+    public WireReplayer(File file, double speed, int periodMicros) {
+        super(0, 0, periodMicros, 0L);
+        this.speed = speed > 0 ? speed : 1.0;
+        load(file);
+        link();
+        current = -1;
+    }
+
+    public int recordCount() {
+        return records;
+    }
+
+    public int replayedCount() {
+        return replayed;
+    }
+
+    public int mismatchCount() {
+        return mismatches;
+    }
+
+    public boolean isFinished() {
+        // Every recorded pair was replayed or passed over
+        return replayed + skipped >= records;
+    }
+
+    @Override
+    protected long transactionNanos(byte[] request) {
+        current = -1;
+        currentRegister = request[Wire.REG_NUMBER] & 0xff;
+        int device = request[Wire.DEV_ADDR] & 0xff;
+        int passed = 0;
+        for (int i = cursor[device]; i >= 0; i = nextOfDevice[i]) {
+            int h = 4 * i;
+            if (headers[h] == request[Wire.CACHE_MODE]
+                    && headers[h + 2] == request[Wire.REG_NUMBER]
+                    && headers[h + 3] == request[Wire.REG_COUNT]) {
+                current = i;
+                cursor[device] = nextOfDevice[i];
+                replayed++;
+                skipped += passed;
+                mismatches += passed;       // Recorded requests the driver did not make
+                return (long) (busNanos[i] / speed);
+            }
+            passed++;
+        }
+        mismatches++;
+        return super.transactionNanos(request);
+    }
+
+    @Override
+    protected int onRead(int regNumber, int value) {
+        if (current < 0) return value;
+        int index = (regNumber - currentRegister) & 0xff;
+        if (index >= Wire.CACHE_SIZE - Wire.DATA_OFFSET) return value;
+        return payloads[current * Wire.CACHE_SIZE + index] & 0xff;
+    }
+
+    private void load(File file) {
+        // Pair every dispatched request with the first following reply that has its header
+        int capacity = 256;
+        headers = new byte[4 * capacity];
+        busNanos = new long[capacity];
+        payloads = new byte[Wire.CACHE_SIZE * capacity];
+        long[] dispatched = new long[capacity];   // Dispatch time, -1 once answered
+        int firstOpen = 0;                  // No unanswered request before it
+        records = 0;
+        DataInputStream in = null;
+        try {
+            in = new DataInputStream(new BufferedInputStream(new FileInputStream(file)));
+            if (in.readInt() != WireRecorder.MAGIC || in.readByte() != WireRecorder.VERSION) return;
+            byte[] header = new byte[Wire.DATA_OFFSET];
+            byte[] payload = new byte[Wire.CACHE_SIZE];
+            while (true) {
+                byte type = in.readByte();
+                long micros = in.readLong();
+                in.readFully(header);
+                int payloadLength = in.readUnsignedByte();
+                in.readFully(payload, 0, payloadLength);
+                if (type == WireRecorder.DISPATCH) {
+                    if (records == capacity) {
+                        capacity *= 2;
+                        headers = grow(headers, 4 * capacity);
+                        busNanos = grow(busNanos, capacity);
+                        payloads = grow(payloads, Wire.CACHE_SIZE * capacity);
+                        dispatched = grow(dispatched, capacity);
+                    }
+                    System.arraycopy(header, 0, headers, 4 * records, Wire.DATA_OFFSET);
+                    dispatched[records++] = micros;
+                } else if (type == WireRecorder.REPLY) {
+                    int i = findRequest(header, dispatched, firstOpen);
+                    if (i < 0) continue;    // Its request was not captured
+                    busNanos[i] = (micros - dispatched[i]) * 1000L;
+                    System.arraycopy(payload, 0, payloads, Wire.CACHE_SIZE * i, payloadLength);
+                    dispatched[i] = -1L;
+                    while (firstOpen < records && dispatched[firstOpen] < 0) firstOpen++;
+                }
+            }
+        } catch (EOFException e) {
+            // End of the capture
+        } catch (IOException e) {
+        } finally {
+            if (in != null) {
+                try {
+                    in.close();
+                } catch (IOException e) {
+                }
+            }
+        }
+        int kept = 0;                       // Drop the requests that got no reply
+        for (int i = 0; i < records; i++) {
+            if (dispatched[i] >= 0) continue;
+            if (kept != i) {
+                System.arraycopy(headers, 4 * i, headers, 4 * kept, 4);
+                busNanos[kept] = busNanos[i];
+                System.arraycopy(payloads, Wire.CACHE_SIZE * i, payloads, Wire.CACHE_SIZE * kept,
+                        Wire.CACHE_SIZE);
+            }
+            kept++;
+        }
+        records = kept;
+    }
+
+    private int findRequest(byte[] header, long[] dispatched, int from) {
+        // Oldest unanswered request with the header of a reply, -1 if none
+        for (int i = from; i < records; i++) {
+            int h = 4 * i;
+            if (dispatched[i] >= 0
+                    && headers[h] == header[Wire.CACHE_MODE]
+                    && headers[h + 1] == header[Wire.DEV_ADDR]
+                    && headers[h + 2] == header[Wire.REG_NUMBER]
+                    && headers[h + 3] == header[Wire.REG_COUNT]) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    private void link() {
+        // Chain the pairs of each device address in recorded order
+        nextOfDevice = new int[Math.max(records, 1)];
+        cursor = new int[256];
+        int[] last = new int[256];
+        for (int d = 0; d < 256; d++) {
+            cursor[d] = -1;
+            last[d] = -1;
+        }
+        for (int i = 0; i < records; i++) {
+            int device = headers[4 * i + 1] & 0xff;
+            nextOfDevice[i] = -1;
+            if (last[device] < 0) {
+                cursor[device] = i;
+            } else {
+                nextOfDevice[last[device]] = i;
+            }
+            last[device] = i;
+        }
+    }
+
+    private static byte[] grow(byte[] array, int size) {
+        byte[] bigger = new byte[size];
+        System.arraycopy(array, 0, bigger, 0, array.length);
+        return bigger;
+    }
+
+    private static long[] grow(long[] array, int size) {
+        long[] bigger = new long[size];
+        System.arraycopy(array, 0, bigger, 0, array.length);
+        return bigger;
+    }
+}
@@ -0,0 +1,54 @@
+package com.techietitans.libraries;
+
+/**
+ * Read-only view of one Wire response, handed to a WireListener.
+ * <p/>
+ * Wire owns a single instance and points it to the next response before every call, so a
+ * listener must copy out what it needs. Data is addressed by index, there is no read cursor.
+ */
+public class WireResponse {
+    private byte[] cache;
+    private long micros;
+
+    void wrap(byte[] cache, long micros) {
+        this.cache = cache;
+        this.micros = micros;
+    }
+
+    public boolean isRead() {
+        return cache[Wire.CACHE_MODE] == Wire.READ_MODE;
+    }
+
+    public boolean isWrite() {
+        return cache[Wire.CACHE_MODE] == Wire.WRITE_MODE;
+    }
+
+    public int deviceAddress() {
+        return cache[Wire.DEV_ADDR] & 0xff;
+    }
+
+    public int registerNumber() {
+        return cache[Wire.REG_NUMBER] & 0xff;
+    }
+
+    public int count() {
+        return cache[Wire.REG_COUNT];
+    }
+
+    public long micros() {
+        return micros;
+    }
+
+    public int read(int index) {
+        if (index < 0 || index >= count()) return 0;
+        return cache[Wire.DATA_OFFSET + index] & 0xff;
+    }
+
+    public int readHL(int index) {
+        return 256 * read(index) + read(index + 1);
+    }
+
+    public int readLH(int index) {
+        return 256 * read(index + 1) + read(index);
+    }
+}
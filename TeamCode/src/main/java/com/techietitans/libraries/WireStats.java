@@ -0,0 +1,197 @@
+package com.techietitans.libraries;
+
+/**
+ * Counters and latency histograms of the transactions of one Wire.
+ * <p/>
+ * Wire keeps a live instance that is written by its own threads. An OpMode keeps a second
+ * instance and refreshes it with Wire.getStats() once per loop, then reads it for telemetry
+ * or DataLogger. Nothing here allocates after construction. A snapshot taken while the bus
+ * is busy may be off by the transaction in progress.
+ * <p/>
+ * Times are microseconds. For every register two histograms are kept: the wait in the request
+ * queue (enqueue to dispatch) and the bus time (dispatch to completion). Bucket i holds
+ * times below 2^(i + 7) us, the last bucket holds everything longer. The queue wait is also
+ * kept per Wire.Priority class, to check the tail latency of the critical class.
+ */
+public class WireStats {
+    static final int
+            BUCKETS = 16,               // Up to 2^21 us, about 2 s
+            FIRST_BUCKET_BITS = 7;      // Bucket 0 is below 128 us
+
+    private final int[] waitHistogram = new int[256 * BUCKETS];
+    private final int[] busHistogram = new int[256 * BUCKETS];
+    private final int[] classHistogram = new int[Wire.CLASSES * BUCKETS];
+    private final long[] classWaitMicros = new long[Wire.CLASSES];
+    private final long[] classMaxWait = new long[Wire.CLASSES];
+    private long transactions;          // Completed transactions
+    private long bytes;                 // Data bytes moved by completed transactions
+    private long waitMicros;            // Sum of queue waits
+    private long busMicros;             // Sum of bus times
+    private long polls;                 // Extra readI2cCacheFromController calls
+    private long skippedPolls;          // Callbacks that waited instead of polling
+    private long idleTransitions;       // Times the bus went idle
+    private int queueDepth;             // Requests waiting at the last enqueue or dispatch
+    private int maxQueueDepth;          // Highest queueDepth seen
+    private long micros;                // Wire time of the snapshot
+
+    // --------------------------------- Recording, used by Wire ----------------------------------
+
+    void recordTransaction(int regNumber, int count, int priority, long wait, long bus) {
+        int offset = (regNumber & 0xff) * BUCKETS;
+        waitHistogram[offset + bucket(wait)]++;
+        classHistogram[priority * BUCKETS + bucket(wait)]++;
+        classWaitMicros[priority] += wait;
+        if (wait > classMaxWait[priority]) classMaxWait[priority] = wait;
+        busHistogram[offset + bucket(bus)]++;
+        waitMicros += wait;
+        busMicros += bus;
+        bytes += count;
+        transactions++;
+    }
+
+    void recordPoll() {
+        polls++;
+    }
+
+    void recordSkippedPoll() {
+        skippedPolls++;
+    }
+
+    void recordIdle() {
+        idleTransitions++;
+    }
+
+    void recordQueueDepth(int depth) {
+        queueDepth = depth;
+        if (depth > maxQueueDepth) maxQueueDepth = depth;
+    }
+
+    void copyTo(WireStats snapshot, long micros) {
+        System.arraycopy(waitHistogram, 0, snapshot.waitHistogram, 0, waitHistogram.length);
+        System.arraycopy(busHistogram, 0, snapshot.busHistogram, 0, busHistogram.length);
+        System.arraycopy(classHistogram, 0, snapshot.classHistogram, 0, classHistogram.length);
+        System.arraycopy(classWaitMicros, 0, snapshot.classWaitMicros, 0, Wire.CLASSES);
+        System.arraycopy(classMaxWait, 0, snapshot.classMaxWait, 0, Wire.CLASSES);
+        snapshot.transactions = transactions;
+        snapshot.bytes = bytes;
+        snapshot.waitMicros = waitMicros;
+        snapshot.busMicros = busMicros;
+        snapshot.polls = polls;
+        snapshot.skippedPolls = skippedPolls;
+        snapshot.idleTransitions = idleTransitions;
+        snapshot.queueDepth = queueDepth;
+        snapshot.maxQueueDepth = maxQueueDepth;
+        snapshot.micros = micros;
+    }
+
+    private static int bucket(long micros) {
+        int bits = 64 - Long.numberOfLeadingZeros(micros >> FIRST_BUCKET_BITS);
+        return Math.min(bits, BUCKETS - 1);
+    }
+
+    // --------------------------------- Reading a snapshot ---------------------------------------
+
+    public long transactions() {
+        return transactions;
+    }
+
+    public long bytes() {
+        return bytes;
+    }
+
+    public long polls() {
+        return polls;
+    }
+
+    public long skippedPolls() {
+        return skippedPolls;
+    }
+
+    public double pollsPerTransaction() {
+        return transactions > 0 ? (double) polls / transactions : 0.0;
+    }
+
+    public long idleTransitions() {
+        return idleTransitions;
+    }
+
+    public int queueDepth() {
+        return queueDepth;
+    }
+
+    public int maxQueueDepth() {
+        return maxQueueDepth;
+    }
+
+    public long micros() {
+        return micros;
+    }
+
+    public double transactionsPerSecond() {
+        return micros > 0 ? transactions * 1.0E6 / micros : 0.0;
+    }
+
+    public double meanWaitMicros() {
+        return transactions > 0 ? (double) waitMicros / transactions : 0.0;
+    }
+
+    public double meanBusMicros() {
+        return transactions > 0 ? (double) busMicros / transactions : 0.0;
+    }
+
+    public double busUtilisation() {
+        return micros > 0 ? (double) busMicros / micros : 0.0;
+    }
+
+    public long waitPercentileMicros(int regNumber, double percent) {
+        return percentile(waitHistogram, regNumber, percent);
+    }
+
+    public long busPercentileMicros(int regNumber, double percent) {
+        return percentile(busHistogram, regNumber, percent);
+    }
+
+    public int count(int regNumber) {
+        return total(busHistogram, (regNumber & 0xff) * BUCKETS);
+    }
+
+    public int count(Wire.Priority priority) {
+        return total(classHistogram, priority.ordinal() * BUCKETS);
+    }
+
+    public double meanWaitMicros(Wire.Priority priority) {
+        int count = count(priority);
+        return count > 0 ? (double) classWaitMicros[priority.ordinal()] / count : 0.0;
+    }
+
+    public long maxWaitMicros(Wire.Priority priority) {
+        return classMaxWait[priority.ordinal()];
+    }
+
+    public long waitPercentileMicros(Wire.Priority priority, double percent) {
+        return percentileAt(classHistogram, priority.ordinal() * BUCKETS, percent);
+    }
+
+    private int total(int[] histogram, int offset) {
+        int count = 0;
+        for (int i = 0; i < BUCKETS; i++) count += histogram[offset + i];
+        return count;
+    }
+
+    private long percentile(int[] histogram, int regNumber, double percent) {
+        return percentileAt(histogram, (regNumber & 0xff) * BUCKETS, percent);
+    }
+
+    private long percentileAt(int[] histogram, int offset, double percent) {
+        // Upper bound of the bucket that holds the given percentile, 0 without data
+        int total = total(histogram, offset);
+        if (total == 0) return 0;
+        long limit = (long) Math.ceil(total * percent / 100.0);
+        long seen = 0;
+        for (int i = 0; i < BUCKETS; i++) {
+            seen += histogram[offset + i];
+            if (seen >= limit) return 1L << (i + FIRST_BUCKET_BITS);
+        }
+        return 1L << (BUCKETS - 1 + FIRST_BUCKET_BITS);
+    }
+}
@@ -215,19 +215,27 @@ public class AaryanRED extends HardwareClass_V2{
                 jewel_pusher_arm.setPosition(JEWEL_PUSHER_ARM_ENGAGE);
                 if (runtime.milliseconds() > 3000) {
                     currentState++;
+                    jewelDecision.start();
                         runtime.reset();
 
                 }
                 break;
             case 4:
-                // Detect the Jewel color. Pause for 1 sec to get stable reading
-                if (Color_jewel.red()>Color_jewel.blue()){
-                    jewelColor= Colors.RED;
-                }
-                else{
-                    jewelColor= Colors.BLUE;
-                }
-                if (runtime.milliseconds() > 1000) {
+                // Detect the Jewel color. Move on as soon as the readings are conclusive,
+                // the decision times out after 1 sec
+                if (jewelDecision.add(Color_jewel)) {
+                    if (jewelDecision.result() == RED_JEWEL){
+                        jewelColor= Colors.RED;
+                    }
+                    else if (jewelDecision.result() == BLUE_JEWEL){
+                        jewelColor= Colors.BLUE;
+                    }
+                    else if (Color_jewel.red()>Color_jewel.blue()){
+                        jewelColor= Colors.RED;
+                    }
+                    else{
+                        jewelColor= Colors.BLUE;
+                    }
                     currentState++;
                     runtime.reset();
                 }
@@ -412,6 +420,7 @@ public class AaryanRED extends HardwareClass_V2{
         telemetry.addData("Jewel : ", jewelColor);
         telemetry.addData("Red : ",Color_jewel.red());
         telemetry.addData("Blue : ",Color_jewel.blue());
+        telemetry.addData("Jewel ms : ",jewelDecision.decisionMillis());
         telemetry.addData("Alliance : ",allianceColor);
         telemetry.addData("Placing in ",collumn);
 
@@ -23,6 +23,9 @@ public class REDRidha extends HardwareClass_V2{
     boolean isRunning = false;
     boolean isResetRunning = false;
     DataLogger dl;
+    DataLogger.IntColumn logLoop, logState, logLeftPosition, logRightPosition, logGyro;
+    DataLogger.IntColumn logJewelRed, logJewelBlue, logRecovery;
+    DataLogger.DoubleColumn logLeftPower, logRightPower, logJewelMillis;
     private ElapsedTime runtime = new ElapsedTime(ElapsedTime.Resolution.MILLISECONDS);
     Colors allianceColor = Colors.RED;
     Colors jewelColor;
@@ -169,13 +172,21 @@ public class REDRidha extends HardwareClass_V2{
     public void start() {
 
         currentState = 0;
-        //TODO: Change for 2017 data points
         if (logEnabled) {
-            //Set a new data logger and header of the file
-//            dl = new DataLogger("Dl_TT_Auto_V4");
-//            dl.addField("LoopCounter");
-//            dl.addField("Bottom_G");
-//            dl.newLine();
+            //Set a new data logger and the columns of the file, written by a background thread
+            dl = new DataLogger("Dl_TT_Auto_V4", true);
+            logLoop = dl.intColumn("LoopCounter");
+            logState = dl.intColumn("State");
+            logLeftPosition = dl.intColumn("LF position");
+            logLeftPower = dl.doubleColumn("LF power");
+            logRightPosition = dl.intColumn("RF position");
+            logRightPower = dl.doubleColumn("RF power");
+            logGyro = dl.intColumn("Gyro");
+            logJewelRed = dl.intColumn("Jewel red");
+            logJewelBlue = dl.intColumn("Jewel blue");
+            logJewelMillis = dl.doubleColumn("Jewel ms");
+            logRecovery = dl.intColumn("Recovery");
+            dl.startRows();
         }
     }
 
@@ -228,19 +239,27 @@ public class REDRidha extends HardwareClass_V2{
                 jewel_pusher_arm.setPosition(JEWEL_PUSHER_ARM_ENGAGE);
                 if (runtime.milliseconds() > 2000) {
                     currentState++;
+                    jewelDecision.start();
                         runtime.reset();
 
                 }
                 break;
             case 4:
-                // Detect the Jewel color. Pause for 1 sec to get stable reading
-                if (Color_jewel.red()>Color_jewel.blue()){
-                    jewelColor= Colors.RED;
-                }
-                else{
-                    jewelColor= Colors.BLUE;
-                }
-                if (runtime.milliseconds() > 1000) {
+                // Detect the Jewel color. Move on as soon as the readings are conclusive,
+                // the decision times out after 1 sec
+                if (jewelDecision.add(Color_jewel)) {
+                    if (jewelDecision.result() == RED_JEWEL){
+                        jewelColor= Colors.RED;
+                    }
+                    else if (jewelDecision.result() == BLUE_JEWEL){
+                        jewelColor= Colors.BLUE;
+                    }
+                    else if (Color_jewel.red()>Color_jewel.blue()){
+                        jewelColor= Colors.RED;
+                    }
+                    else{
+                        jewelColor= Colors.BLUE;
+                    }
                     currentState++;
                     runtime.reset();
                 }
@@ -461,39 +480,25 @@ public class REDRidha extends HardwareClass_V2{
         telemetry.addData("Jewel : ", jewelColor);
         telemetry.addData("Red : ",Color_jewel.red());
         telemetry.addData("Blue : ",Color_jewel.blue());
+        telemetry.addData("Jewel ms : ",jewelDecision.decisionMillis());
         telemetry.addData("Alliance : ",allianceColor);
         telemetry.addData("Placing in ",collumn);
 
 
         // Write data to log file..if enabled and log duration has reached
-        //TODO: Change for 2017 data points
         if ((logEnabled) && ((System.currentTimeMillis()- logTime)>100)){
-//            dl.addField(String.valueOf(loopCounter));
-//            dl.addField(String.valueOf(currentState));
-//            dl.addField(String.valueOf(left_front_motor.getCurrentPosition()));
-//            dl.addField(String.valueOf(left_front_motor.getPower()));
-//            dl.addField(String.valueOf(right_front_motor.getCurrentPosition()));
-//            dl.addField(String.valueOf(right_front_motor.getPower()));
-//            dl.addField(String.valueOf(gyro.getIntegratedZValue()));
-//            dl.addField(String.valueOf(ods_front.getLightDetected()));
-//            dl.addField(String.valueOf(getLeftBeaconColor()));
-//            dl.addField(String.valueOf(mrcolor_front.red()));
-//            dl.addField(String.valueOf(mrcolor_front.blue()));
-//            dl.addField(String.valueOf(mrcolor_front.green()));
-//            dl.addField(String.valueOf(getRightBeaconColor()));
-//            dl.addField(String.valueOf(cs.red()));
-//            dl.addField(String.valueOf(cs.blue()));
-//            dl.addField(String.valueOf(cs.green()));
-//            dl.addField(String.valueOf(pusher_left.getPosition()));
-//            dl.addField(String.valueOf(pusher_right.getPosition()));
-//            dl.addField(String.valueOf(getLineColor()));
-//            dl.addField(String.valueOf(mrcolor_under.red()));
-//            dl.addField(String.valueOf(mrcolor_under.blue()));
-//            dl.addField(String.valueOf(mrcolor_under.green()));
-//            dl.addField(String.valueOf(IsPushed));
-//            dl.addField(String.valueOf(pushSuccessful()));
-//            dl.addField(String.valueOf(recoveryCount));
-//            dl.newLine();
+            logLoop.set(loopCounter);
+            logState.set(currentState);
+            logLeftPosition.set(left_front_motor.getCurrentPosition());
+            logLeftPower.set(left_front_motor.getPower());
+            logRightPosition.set(right_front_motor.getCurrentPosition());
+            logRightPower.set(right_front_motor.getPower());
+            logGyro.set(gyro.getIntegratedZValue());
+            logJewelRed.set(Color_jewel.red());
+            logJewelBlue.set(Color_jewel.blue());
+            logJewelMillis.set(jewelDecision.decisionMillis());
+            logRecovery.set(recoveryCount);
+            dl.writeRow();
             //Reset counter
             logTime = System.currentTimeMillis();
         }
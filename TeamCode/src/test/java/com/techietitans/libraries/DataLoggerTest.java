@@ -0,0 +1,129 @@
+package com.techietitans.libraries;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileReader;
+import java.io.IOException;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assume.assumeTrue;
+
+/**
+ * DataLogger files, written where the robot writes them; skipped where that cannot be made.
+ */
+public class DataLoggerTest {
+    static final String DIRECTORY = "/sdcard/FIRST/DataLogger";
+
+    // --------------------------------- CLASS VARIABLES -------------------------------------------
+    private DataLogger logger;
+
+    @Before
+    public void setUp() {
+        File directory = new File(DIRECTORY);
+        assumeTrue(directory.isDirectory() || directory.mkdirs());
+    }
+
+    @After
+    public void tearDown() {
+        if (logger != null) logger.closeDataLogger();
+    }
+
+    private static String[] lastLineCells(File file) throws IOException {
+        BufferedReader reader = new BufferedReader(new FileReader(file));
+        try {
+            String last = null;
+            for (String line = reader.readLine(); line != null; line = reader.readLine()) last = line;
+            return last.split(",", -1);
+        } finally {
+            reader.close();
+        }
+    }
+
+    //------------------------------------------------- Schema ---------------------------------
+
+    @Test
+    public void setSentinelValuesSurviveInCsv() throws IOException {
+        logger = new DataLogger("DataLoggerTest_schema");
+        DataLogger.IntColumn small = logger.intColumn("Small");
+        DataLogger.LongColumn smallLong = logger.longColumn("SmallLong");
+        DataLogger.DoubleColumn nan = logger.doubleColumn("NaN");
+        DataLogger.IntColumn unset = logger.intColumn("Unset");
+        logger.startRows();
+        small.set(Integer.MIN_VALUE);
+        smallLong.set(Long.MIN_VALUE);
+        nan.set(Double.NaN);
+        logger.writeRow();
+        logger.closeDataLogger();
+        logger = null;
+        String[] cells = lastLineCells(new File(DIRECTORY, "DataLoggerTest_schema.csv"));
+        assertEquals(String.valueOf(Integer.MIN_VALUE), cells[2]);     // After sec and d ms
+        assertEquals(String.valueOf(Long.MIN_VALUE), cells[3]);
+        assertEquals("NaN", cells[4]);
+        assertEquals("", cells[5]);
+    }
+
+    @Test
+    public void recordedRowsKeepTheSetValues() throws IOException {
+        logger = new DataLogger("DataLoggerTest_flight");
+        FlightRecorder recorder = new FlightRecorder(logger, 10, 1000, 1000);
+        DataLogger.IntColumn value = logger.intColumn("Value");
+        DataLogger.IntColumn other = logger.intColumn("Other");
+        FlightRecorder.Trigger trigger = recorder.trigger("Now");
+        logger.startRows();
+        other.set(5);                       // Only in the first row
+        value.set(1);
+        recorder.record();
+        value.set(Integer.MIN_VALUE);
+        trigger.fire();
+        recorder.record();
+        recorder.close();
+        logger = null;
+        String[] cells = lastLineCells(new File(DIRECTORY, "DataLoggerTest_flight.csv"));
+        assertEquals(String.valueOf(Integer.MIN_VALUE), cells[3]);     // After the Event
+        assertEquals("", cells[4]);
+    }
+
+    //------------------------------------------------- Async mode -----------------------------
+
+    @Test
+    public void asyncLinesAreWrittenWhenLoggingStops() throws InterruptedException {
+        File file = new File(DIRECTORY, "DataLoggerTest_async.csv");
+        logger = new DataLogger("DataLoggerTest_async", true);
+        logger.addField("i");
+        logger.newLine();
+        for (int i = 0; i < 10; i++) {
+            logger.addField(i);
+            logger.newLine();
+        }
+        assertEquals(0L, file.length());    // Still in the first buffer
+        Thread.sleep(DataLogger.FLUSH_MILLIS * 3);      // No more lines, no close
+        assertTrue(file.length() > 0L);
+        assertEquals(0, logger.droppedCount());
+    }
+
+    @Test
+    public void asyncBinaryHeaderLongerThanABuffer() throws IOException {
+        // 64 columns of 150 character names, a header of 9808 bytes
+        logger = new DataLogger("DataLoggerTest_header", DataLogger.Format.BINARY, true);
+        StringBuilder name = new StringBuilder();
+        while (name.length() < 147) name.append('n');
+        DataLogger.IntColumn[] columns = new DataLogger.IntColumn[DataLogger.MAX_COLUMNS];
+        for (int c = 0; c < columns.length; c++) {
+            columns[c] = logger.intColumn(name + String.format("%03d", c));
+        }
+        logger.startRows();
+        for (int row = 0; row < 3; row++) {
+            for (int c = 0; c < columns.length; c++) columns[c].set(row);
+            logger.writeRow();
+        }
+        logger.closeDataLogger();
+        logger = null;
+        String path = new File(DIRECTORY, "DataLoggerTest_header").getPath();
+        assertEquals(3L, DataLogExport.export(path + ".ttlog", path + ".csv"));
+    }
+}
@@ -0,0 +1,49 @@
+package com.techietitans.libraries;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Red and blue jewel decisions from readings of a sensor without a new-data signal.
+ */
+public class SequentialDecisionTest {
+    // --------------------------------- CLASS VARIABLES -------------------------------------------
+    private ColorClassifier classifier;
+    private int red;
+    private int blue;
+    private SequentialDecision decision;
+
+    @Before
+    public void setUp() {
+        classifier = new ColorClassifier();
+        red = classifier.addClass("Red", 255, 40, 40);
+        blue = classifier.addClass("Blue", 40, 80, 255);
+        decision = new SequentialDecision(classifier, red, blue);
+    }
+
+    @Test
+    public void constantRedReadingDecidesBeforeTheTimeout() throws InterruptedException {
+        while (!decision.addReading(10, 2, 1)) Thread.sleep(5);     // 8-bit MR counts, every loop
+        assertFalse(decision.isTimedOut());
+        assertEquals(red, decision.result());
+        assertTrue(decision.decisionMillis() < SequentialDecision.TIMEOUT_MILLIS / 4);
+    }
+
+    @Test
+    public void readingsWithinOnePeriodCountOnce() {
+        for (int i = 0; i < 100; i++) decision.addReading(10, 2, 1);
+        assertEquals(1, decision.sampleCount());
+        assertFalse(decision.isDecided());
+    }
+
+    @Test
+    public void oneGlitchDoesNotDecide() {
+        decision.add(1, 2, 10);
+        assertFalse(decision.isDecided());
+        assertEquals(1, decision.sampleCount());
+    }
+}
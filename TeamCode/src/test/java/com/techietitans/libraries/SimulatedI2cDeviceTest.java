@@ -0,0 +1,85 @@
+package com.techietitans.libraries;
+
+import com.qualcomm.robotcore.hardware.I2cController;
+
+import org.junit.Test;
+
+import java.util.Arrays;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Latency and jitter model of SimulatedI2cDevice, on its virtual clock.
+ */
+public class SimulatedI2cDeviceTest {
+    static final int
+            LATENCY = 2000,
+            JITTER = 1000,
+            TRANSACTIONS = 50;
+
+    private static void startRead(SimulatedI2cDevice device, int regNumber) {
+        byte[] cache = device.getI2cWriteCache();
+        cache[Wire.CACHE_MODE] = Wire.READ_MODE;
+        cache[Wire.DEV_ADDR] = 0x40;
+        cache[Wire.REG_NUMBER] = (byte) regNumber;
+        cache[Wire.REG_COUNT] = 1;
+        device.writeI2cCacheToController();
+    }
+
+    private static boolean isDone(SimulatedI2cDevice device) {
+        device.readI2cCacheFromController();
+        return device.getI2cReadCache()[Wire.REG_COUNT] != -1;
+    }
+
+    private static long[] roundTrips(long seed) {
+        // Micros from the write of each transaction to its reply, polled every 10 us
+        SimulatedI2cDevice device = new SimulatedI2cDevice(LATENCY, JITTER, 500, seed, true);
+        long[] micros = new long[TRANSACTIONS];
+        for (int t = 0; t < TRANSACTIONS; t++) {
+            long start = device.nowMicros();
+            startRead(device, t);
+            while (!isDone(device)) device.advance(10);
+            micros[t] = device.nowMicros() - start;
+            device.getI2cReadCache()[Wire.REG_COUNT] = -1;
+        }
+        return micros;
+    }
+
+    @Test
+    public void replyShowsUpAfterTheLatency() {
+        SimulatedI2cDevice device = new SimulatedI2cDevice(LATENCY, 0, 500, 1L, true);
+        device.setRegister(0x30, 0x5A);
+        startRead(device, 0x30);
+        device.advance(LATENCY - 1);
+        assertFalse(isDone(device));
+        device.advance(1);
+        assertTrue(isDone(device));
+        assertEquals(0x5A, device.getI2cReadCache()[Wire.DATA_OFFSET] & 0xff);
+        assertEquals(1, device.transactionCount());
+    }
+
+    @Test
+    public void jitterIsBoundedAndRepeatable() {
+        long[] first = roundTrips(7L);
+        for (long micros : first) {
+            assertTrue(micros >= LATENCY && micros <= LATENCY + JITTER + 10);
+        }
+        assertArrayEquals(first, roundTrips(7L));
+        assertFalse(Arrays.equals(first, roundTrips(8L)));
+    }
+
+    @Test
+    public void callbacksFollowThePeriod() {
+        SimulatedI2cDevice device = new SimulatedI2cDevice(LATENCY, 0, 500, 1L, true);
+        device.registerForI2cPortReadyCallback(new I2cController.I2cPortReadyCallback() {
+            @Override
+            public void portIsReady(int port) {
+            }
+        });
+        device.advance(10000);
+        assertEquals(21, device.getCallbackCount());    // At 0, 0.5 ms, .. 10 ms
+    }
+}
@@ -0,0 +1,100 @@
+package com.techietitans.libraries;
+
+import org.junit.After;
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Wire against a SimulatedI2cDevice: 2 ms transactions, callbacks every 0.5 ms. The virtual
+ * clock tests are exact, the others run the device's own callback thread.
+ */
+public class WireTest {
+    static final int DEV_ADDR = 0x40;
+
+    // --------------------------------- CLASS VARIABLES -------------------------------------------
+    private SimulatedI2cDevice device;
+    private Wire wire;
+
+    private void open(boolean isVirtual) {
+        device = new SimulatedI2cDevice(2000, isVirtual ? 0 : 500, 500, 1L, isVirtual);
+        wire = new Wire(device, DEV_ADDR);
+    }
+
+    @After
+    public void tearDown() {
+        if (wire != null) wire.close();
+    }
+
+    private long waitForResponse() {
+        // Virtual clock: micros until a response is there
+        long start = device.nowMicros();
+        for (int step = 0; step < 1000 && wire.responseCount() == 0; step++) device.advance(100);
+        return device.nowMicros() - start;
+    }
+
+    //------------------------------------------------- Round trip -----------------------------
+
+    @Test
+    public void readTakesLatencyAndOneCallback() {
+        open(true);
+        device.setRegister(0x20, 42);
+        wire.requestFrom(0x20, 1);
+        assertEquals(2500L, waitForResponse());     // Done at 2 ms, seen by the next callback
+        assertTrue(wire.getResponse());
+        assertTrue(wire.isRead());
+        assertEquals(0x20, wire.registerNumber());
+        assertEquals(42, wire.read());
+        assertEquals(1, device.transactionCount());
+    }
+
+    @Test
+    public void writeIsConfirmed() {
+        open(true);
+        wire.write(0x21, 7);
+        assertEquals(2500L, waitForResponse());
+        assertTrue(wire.getResponse());
+        assertTrue(wire.isWrite());
+        assertEquals(7, device.getRegister(0x21));
+    }
+
+    //------------------------------------------------- Write combining ------------------------
+
+    @Test
+    public void combinedWritesSendOnlyTheLastValues() {
+        open(true);
+        wire.setWriteCombining(true);
+        for (int i = 1; i <= 100; i++) {
+            wire.write(0x10, i);
+            wire.write(0x11, i);
+        }
+        device.advance(10000);              // No calls into the Wire
+        assertEquals(100, device.getRegister(0x10));
+        assertEquals(100, device.getRegister(0x11));
+        assertEquals(2, device.transactionCount()); // The first write, then 0x10 and 0x11 as one
+    }
+
+    @Test
+    public void heldWritesGoOutWhenTheWriterGoesQuiet() throws InterruptedException {
+        open(false);
+        wire.setWriteCombining(true);
+        for (int i = 1; i <= 100; i++) {
+            wire.write(0x10, i);
+            wire.write(0x11, i);
+        }
+        Thread.sleep(500);                  // No calls into the Wire
+        assertEquals(100, device.getRegister(0x10));
+        assertEquals(100, device.getRegister(0x11));
+    }
+
+    @Test
+    public void closeSendsHeldWrites() {
+        open(false);
+        wire.setWriteCombining(true);
+        wire.requestFrom(0x20, 1);          // Keeps the bus busy
+        for (int i = 1; i <= 10; i++) wire.write(0x10, i);
+        wire.close();
+        assertEquals(10, device.getRegister(0x10));
+    }
+}